@@ -0,0 +1,100 @@
+/*
+ * Copyright (c) 2014
+ *
+ * ApkTrack is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ApkTrack is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ApkTrack.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fr.kwiatkowski.ApkTrack;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the sorts performed on the application list every time it is displayed or refreshed.
+ * The synthetic applications mix system and user applications, checked and unchecked ones, updated
+ * ones and check errors in proportions similar to a real device.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SortBenchmark
+{
+    @Param({"1000", "10000"})
+    public int count;
+
+    @Param({"UpdatedSystemComparator", "UpdatedComparator"})
+    public String comparator;
+
+    private List<InstalledApp> apps;
+    private Comparator<InstalledApp> cmp;
+
+    @Setup
+    public void setup()
+    {
+        cmp = comparator.equals("UpdatedComparator") ? new UpdatedComparator() : new UpdatedSystemComparator();
+
+        Random rnd = new Random(42);
+        apps = new ArrayList<InstalledApp>(count);
+        for (int i = 0 ; i < count ; ++i)
+        {
+            String version = rnd.nextInt(10) + "." + rnd.nextInt(10) + "." + rnd.nextInt(100);
+            InstalledApp app = new InstalledApp("com.example.app" + i, version, random_name(rnd),
+                                                rnd.nextInt(3) == 0, null);
+            int state = rnd.nextInt(10);
+            if (state < 2) {
+                continue; // Never checked
+            }
+            else if (state < 3) {
+                app.setLastCheckFatalError(true);
+            }
+            else if (state < 5) {
+                app.setLatestVersion(version + ".1"); // Outdated
+            }
+            else {
+                app.setLatestVersion(version);
+            }
+            app.setLastCheckDate("01/01/2015 12:00");
+            apps.add(app);
+        }
+        // Keep the requested size even with the unchecked applications skipped above.
+        while (apps.size() < count) {
+            apps.add(new InstalledApp("com.example.unchecked" + apps.size(), "1.0", random_name(rnd), false, null));
+        }
+        Collections.shuffle(apps, rnd);
+    }
+
+    @Benchmark
+    public List<InstalledApp> sort()
+    {
+        List<InstalledApp> copy = new ArrayList<InstalledApp>(apps);
+        Collections.sort(copy, cmp);
+        return copy;
+    }
+
+    private static String random_name(Random rnd)
+    {
+        String[] words = { "Google", "Maps", "Calendar", "Mail", "Photo", "Music", "Player", "Xposed",
+                           "Keyboard", "Launcher", "Camera", "Notes", "Browser", "Clock", "Weather" };
+        return words[rnd.nextInt(words.length)] + " " + words[rnd.nextInt(words.length)] + " " + rnd.nextInt(1000);
+    }
+}
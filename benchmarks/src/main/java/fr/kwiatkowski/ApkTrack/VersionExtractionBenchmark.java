@@ -0,0 +1,191 @@
+/*
+ * Copyright (c) 2014
+ *
+ * ApkTrack is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ApkTrack is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ApkTrack.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fr.kwiatkowski.ApkTrack;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Measures how long it takes to find the version number in the pages of each source.
+ * Recorded pages are read from the <code>pages/</code> resources (e.g. <code>pages/PLAY_STORE-200k.html</code>)
+ * when they exist. Otherwise, a page of the requested size is generated: HTML boilerplate with the
+ * version near the end, which is the worst case for the scan.
+ * <p>
+ * No recorded pages are shipped: they are third-party content, and they go stale as the stores change
+ * their markup. To measure real pages, save them under <code>src/main/resources/pages/</code> before
+ * building, i.e. <code>curl -o src/main/resources/pages/PLAY_STORE-200k.html "https://play.google.com/..."</code>.
+ * The size in the name is only a label in that case. Results obtained on generated pages are reported as such.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class VersionExtractionBenchmark
+{
+    @Param({"PLAY_STORE", "APPBRAIN", "XPOSED_STABLE"})
+    public String source;
+
+    @Param({"20k", "200k", "1m"})
+    public String size;
+
+    private VersionSource version_source;
+    private byte[] page_bytes;
+    private String page;
+
+    @Setup
+    public void setup() throws IOException
+    {
+        if (source.equals("PLAY_STORE")) {
+            version_source = VersionSources.PLAY_STORE;
+        }
+        else if (source.equals("APPBRAIN")) {
+            version_source = VersionSources.APPBRAIN;
+        }
+        else {
+            version_source = VersionSources.XPOSED_STABLE;
+        }
+
+        page_bytes = load_page(source + "-" + size + ".html");
+        if (page_bytes == null)
+        {
+            page_bytes = generate_page(parse_size(size)).getBytes("UTF-8");
+            System.err.println("No recorded page for " + source + "-" + size + ": using a generated page.");
+        }
+        page = new String(page_bytes, "UTF-8");
+
+        // Make sure the benchmark measures an actual match.
+        if (!version_source.getVersionPattern().matcher(page).find()) {
+            throw new IllegalStateException("The version cannot be found in the " + source + " page!");
+        }
+    }
+
+    /**
+     * The version pattern applied to the whole page, as it was done before pages were streamed.
+     */
+    @Benchmark
+    public String findVersionPattern()
+    {
+        Matcher m = version_source.getVersionPattern().matcher(page);
+        return m.find() ? m.group(1) : null;
+    }
+
+    /**
+     * The literal-anchored search used instead of the version pattern by <code>PageScanner</code>.
+     */
+    @Benchmark
+    public String extractVersion()
+    {
+        AnchoredExtractor extractor = AnchoredExtractor.compile(version_source.getVersionPattern());
+        return extractor.find(page) ? extractor.getMatch() : null;
+    }
+
+    /**
+     * The page streamed through the scanner used by <code>VersionGetTask</code>, including UTF-8 decoding.
+     */
+    @Benchmark
+    public String scanPage() throws IOException
+    {
+        PageScanner scanner = version_source.getUnavailablePattern() == null ?
+                new PageScanner(version_source.getVersionPattern()) :
+                new PageScanner(version_source.getVersionPattern(), version_source.getUnavailablePattern());
+        scanner.scan(new ByteArrayInputStream(page_bytes));
+        return scanner.getMatch();
+    }
+
+    private static byte[] load_page(String name) throws IOException
+    {
+        InputStream is = VersionExtractionBenchmark.class.getResourceAsStream("/pages/" + name);
+        if (is == null) {
+            return null;
+        }
+        try
+        {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int rsz;
+            while ((rsz = is.read(buffer)) >= 0) {
+                baos.write(buffer, 0, rsz);
+            }
+            return baos.toByteArray();
+        }
+        finally {
+            is.close();
+        }
+    }
+
+    private static int parse_size(String size)
+    {
+        int factor = 1;
+        if (size.endsWith("k")) {
+            factor = 1024;
+        }
+        else if (size.endsWith("m")) {
+            factor = 1024 * 1024;
+        }
+        return Integer.parseInt(factor == 1 ? size : size.substring(0, size.length() - 1)) * factor;
+    }
+
+    /**
+     * Generates a page of approximately <code>length</code> characters whose version is located at 90%.
+     * The filler contains many '&lt;' and '&gt;' so that the patterns have candidates to reject.
+     */
+    private String generate_page(int length)
+    {
+        Random rnd = new Random(42);
+        String marker;
+        if (source.equals("PLAY_STORE")) {
+            marker = "<div class=\"content\" itemprop=\"softwareVersion\"> 4.2.2-beta (1234)  </div>";
+        }
+        else if (source.equals("APPBRAIN")) {
+            marker = "<div class=\"clDesc\">Version 4.2.2-beta (1234)</div>";
+        }
+        else {
+            marker = "<div class=\"field-item even\">4.2.2-beta (1234)</div></div></div><div class=\"field field-name-field-release-type field-type-list-text field-label-inline clearfix\"><div class=\"field-label\">Release type:&nbsp;</div><div class=\"field-items\"><div class=\"field-item even\">Stable</div></div></div>";
+        }
+        String[] filler = {
+                "<div class=\"field-item even\">",
+                "<span itemprop=\"name\">Lorem ipsum</span>",
+                "</div></div>",
+                "<a href=\"/store/apps/details?id=com.example\" class=\"title\">Example</a>",
+                "<div class=\"clDesc\">Downloads 1,000+</div>",
+                "<script>var x = 1 < 2 && 3 > 2;</script>",
+                "\n    " };
+
+        StringBuilder sb = new StringBuilder(length + marker.length());
+        sb.append("<!DOCTYPE html><html><head><title>Example</title></head><body>");
+        while (sb.length() < length * 9 / 10) {
+            sb.append(filler[rnd.nextInt(filler.length)]);
+        }
+        sb.append(marker);
+        while (sb.length() < length) {
+            sb.append(filler[rnd.nextInt(filler.length)]);
+        }
+        sb.append("</body></html>");
+        return sb.toString();
+    }
+}
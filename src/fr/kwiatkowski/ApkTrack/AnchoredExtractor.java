@@ -0,0 +1,303 @@
+/*
+ * Copyright (c) 2014
+ *
+ * ApkTrack is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ApkTrack is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ApkTrack.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fr.kwiatkowski.ApkTrack;
+
+import java.util.regex.Pattern;
+
+/**
+ * Finds matches of simple regular expressions without running the regex engine.
+ * Version patterns usually look like <code>PREFIX([^&lt;]+?)SUFFIX</code>, where PREFIX and SUFFIX are
+ * literal strings. Such a pattern is matched by searching the longest of the two literals with the
+ * Boyer-Moore-Horspool algorithm, and by reading the captured field around it. This is much cheaper than
+ * the regex engine, which attempts a match at every position of the page when the pattern starts
+ * with a short prefix (such as the "&gt;" of the Xposed repository pattern).
+ *
+ * The result is always the one <code>Matcher.find</code> would have returned. Patterns which cannot be
+ * matched this way are rejected by <code>compile</code>, and should be matched with a regular Matcher.
+ */
+public class AnchoredExtractor
+{
+    private static final String META = "\\^$.|?*+()[]{}";
+
+    private String prefix;
+    private String suffix;
+    private char[] excluded; // Characters the captured field cannot contain. Null if there is no group.
+    private String anchor;
+    private int[] shift;
+
+    private String match = null;
+
+    private AnchoredExtractor(String prefix, char[] excluded, String suffix)
+    {
+        this.prefix = prefix;
+        this.excluded = excluded;
+        this.suffix = suffix;
+
+        // Search for the longest literal: it occurs less often and allows longer skips.
+        anchor = excluded == null || prefix.length() >= suffix.length() ? prefix : suffix;
+        shift = new int[256];
+        int m = anchor.length();
+        for (int i = 0 ; i < shift.length ; ++i) {
+            shift[i] = m;
+        }
+        // Characters are hashed on their low byte: collisions only lead to shorter skips.
+        for (int i = 0 ; i < m - 1 ; ++i) {
+            shift[anchor.charAt(i) & 0xFF] = m - 1 - i;
+        }
+    }
+
+    /**
+     * Creates an extractor for a pattern, if possible.
+     * Supported patterns are either a literal string, or a literal prefix followed by a group such as
+     * <code>([^&lt;]+?)</code> (a negated character class repeated at least once, lazily or not) and by a
+     * literal suffix starting with one of the characters excluded by the class.
+     * @param pattern The pattern to analyze.
+     * @return An extractor equivalent to the pattern, or null if the pattern isn't supported.
+     */
+    public static AnchoredExtractor compile(Pattern pattern)
+    {
+        if (pattern.flags() != 0) {
+            return null;
+        }
+        String regex = pattern.pattern();
+        int[] pos = { 0 };
+
+        String prefix = parse_literal(regex, pos);
+        if (prefix == null) {
+            return null;
+        }
+        if (pos[0] == regex.length())
+        {
+            // The whole pattern is a literal string.
+            return prefix.isEmpty() ? null : new AnchoredExtractor(prefix, null, null);
+        }
+
+        char[] excluded = parse_group(regex, pos);
+        if (excluded == null) {
+            return null;
+        }
+        String suffix = parse_literal(regex, pos);
+        if (suffix == null || pos[0] != regex.length()) {
+            return null;
+        }
+        // If the suffix begins with an excluded character, the captured field can only end right before
+        // the first excluded character following the prefix. This is what makes the search exact.
+        if (suffix.isEmpty() || !contains(excluded, suffix.charAt(0))) {
+            return null;
+        }
+        return new AnchoredExtractor(prefix, excluded, suffix);
+    }
+
+    /**
+     * Looks for the pattern in a text.
+     * @param text The text to search.
+     * @return Whether the pattern was found. The captured field is then available through <code>getMatch</code>.
+     */
+    public boolean find(CharSequence text)
+    {
+        match = null;
+        if (excluded == null)
+        {
+            int i = index_of(text, 0);
+            if (i >= 0) {
+                match = prefix;
+            }
+            return i >= 0;
+        }
+        return anchor == prefix ? find_forward(text) : find_backward(text);
+    }
+
+    /**
+     * @return The captured field of the last match (or the whole match if the pattern has no group),
+     * or null if nothing was found.
+     */
+    public String getMatch() {
+        return match;
+    }
+
+    /**
+     * Finds the prefix, then reads the field which follows it.
+     */
+    private boolean find_forward(CharSequence text)
+    {
+        int i = index_of(text, 0);
+        while (i >= 0)
+        {
+            int start = i + prefix.length();
+            int end = start;
+            while (end < text.length() && !contains(excluded, text.charAt(end))) {
+                ++end;
+            }
+            if (end > start && region_matches(text, end, suffix))
+            {
+                match = text.subSequence(start, end).toString();
+                return true;
+            }
+            i = index_of(text, i + 1);
+        }
+        return false;
+    }
+
+    /**
+     * Finds the suffix, then reads the field which precedes it back to the prefix.
+     */
+    private boolean find_backward(CharSequence text)
+    {
+        int j = index_of(text, 0);
+        while (j >= 0)
+        {
+            // Beginning of the run of characters the field may contain.
+            int run = j;
+            while (run > 0 && !contains(excluded, text.charAt(run - 1))) {
+                --run;
+            }
+            // The leftmost prefix ending in that run, leaving at least one character for the field.
+            for (int i = Math.max(0, run - prefix.length()) ; i + prefix.length() < j ; ++i)
+            {
+                if (region_matches(text, i, prefix))
+                {
+                    match = text.subSequence(i + prefix.length(), j).toString();
+                    return true;
+                }
+            }
+            j = index_of(text, j + 1);
+        }
+        return false;
+    }
+
+    /**
+     * Boyer-Moore-Horspool search of the anchor.
+     * @return The position of the first occurrence of the anchor at or after <code>from</code>, or -1.
+     */
+    private int index_of(CharSequence text, int from)
+    {
+        int last = anchor.length() - 1;
+        char last_char = anchor.charAt(last);
+        int end = text.length() - anchor.length();
+        int i = from;
+        while (i <= end)
+        {
+            char c = text.charAt(i + last);
+            if (c == last_char && region_matches(text, i, anchor)) {
+                return i;
+            }
+            i += shift[c & 0xFF];
+        }
+        return -1;
+    }
+
+    private static boolean region_matches(CharSequence text, int offset, String s)
+    {
+        if (offset < 0 || offset + s.length() > text.length()) {
+            return false;
+        }
+        for (int k = 0 ; k < s.length() ; ++k)
+        {
+            if (text.charAt(offset + k) != s.charAt(k)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean contains(char[] chars, char c)
+    {
+        for (char x : chars)
+        {
+            if (x == c) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Reads literal characters until the end of the regex or an opening parenthesis.
+     * @return The literal string, or null if an unsupported construct was found.
+     */
+    private static String parse_literal(String regex, int[] pos)
+    {
+        StringBuilder sb = new StringBuilder();
+        while (pos[0] < regex.length())
+        {
+            char c = regex.charAt(pos[0]);
+            if (c == '(') {
+                break;
+            }
+            if (c == '\\')
+            {
+                // Only escaped punctuation is a literal. \d, \Q, \1... are not supported.
+                if (pos[0] + 1 >= regex.length() || Character.isLetterOrDigit(regex.charAt(pos[0] + 1))) {
+                    return null;
+                }
+                c = regex.charAt(++pos[0]);
+            }
+            else if (META.indexOf(c) >= 0) {
+                return null;
+            }
+            sb.append(c);
+            ++pos[0];
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Parses a group of the form <code>([^abc]+)</code> or <code>([^abc]+?)</code>.
+     * @return The characters excluded by the class, or null if the group isn't supported.
+     */
+    private static char[] parse_group(String regex, int[] pos)
+    {
+        if (!regex.startsWith("([^", pos[0])) {
+            return null;
+        }
+        pos[0] += 3;
+        StringBuilder sb = new StringBuilder();
+        while (pos[0] < regex.length() && regex.charAt(pos[0]) != ']')
+        {
+            char c = regex.charAt(pos[0]);
+            if (c == '\\')
+            {
+                if (pos[0] + 1 >= regex.length() || Character.isLetterOrDigit(regex.charAt(pos[0] + 1))) {
+                    return null;
+                }
+                c = regex.charAt(++pos[0]);
+            }
+            else if (c == '[' || c == '-' || c == '&' || c == '^') {
+                return null; // Ranges, unions and intersections.
+            }
+            sb.append(c);
+            ++pos[0];
+        }
+        if (sb.length() == 0) {
+            return null;
+        }
+
+        String quantifier;
+        if (regex.startsWith("]+?)", pos[0])) {
+            quantifier = "]+?)";
+        }
+        else if (regex.startsWith("]+)", pos[0])) {
+            quantifier = "]+)";
+        }
+        else {
+            return null;
+        }
+        pos[0] += quantifier.length();
+        return sb.toString().toCharArray();
+    }
+}
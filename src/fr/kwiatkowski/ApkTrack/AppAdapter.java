@@ -29,22 +29,31 @@ import android.widget.TextView;
 
 import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
 
 public class AppAdapter extends BaseAdapter
 {
     private List<InstalledApp> data;
     private Context ctx;
+    private IconCache icons;
     private ColorStateList default_color = null;
     private boolean show_system = false;
 
     private int user_app_count = 0;
 
-    public AppAdapter(Context ctx, List<InstalledApp> objects)
+    /**
+     * What is displayed for each application, indexed by package name. Only accessed from the UI thread.
+     */
+    private HashMap<String, RowModel> models = new HashMap<String, RowModel>();
+    private SimpleDateFormat date_format = new SimpleDateFormat();
+
+    public AppAdapter(Context ctx, List<InstalledApp> objects, IconCache icons)
     {
         super();
         this.data = objects;
         this.ctx = ctx;
+        this.icons = icons;
 
         // Move system apps to a different list, since they are not displayed by default.
         hideSystemApps();
@@ -79,8 +88,15 @@ public class AppAdapter extends BaseAdapter
     @Override
     public View getView(int position, View convertView, ViewGroup parent)
     {
-        if (convertView == null) {
+        RowViews views;
+        if (convertView == null)
+        {
             convertView = LayoutInflater.from(ctx).inflate(R.layout.list_item, parent, false);
+            views = new RowViews(convertView);
+            convertView.setTag(views);
+        }
+        else {
+            views = (RowViews) convertView.getTag();
         }
 
         if (position >= data.size()) {
@@ -88,80 +104,112 @@ public class AppAdapter extends BaseAdapter
         }
 
         InstalledApp app = data.get(position);
-
-        View app_info = convertView.findViewById(R.id.app_info);
-        TextView name = (TextView) app_info.findViewById(R.id.name);
-        TextView version = (TextView) app_info.findViewById(R.id.version);
-        TextView date = (TextView) app_info.findViewById(R.id.date);
-        ImageView loader = (ImageView) convertView.findViewById(R.id.loader);
+        RowModel model = get_model(app);
 
         if (default_color == null) {
-            default_color = name.getTextColors();
+            default_color = views.name.getTextColors();
         }
 
-        // Set application name
-        String appname = app.getDisplayName();
-        if (appname != null) {
-            name.setText(appname);
+        views.name.setText(model.name);
+
+        // Display the loader if we're currently checking for updates for that application
+        views.loader.setVisibility(app.isCurrentlyChecking() ? View.VISIBLE : View.INVISIBLE);
+
+        views.version.setText(model.version_label);
+        if (model.version_color == null) {
+            views.version.setTextColor(default_color);
         }
         else {
-            name.setText(app.getPackageName());
+            views.version.setTextColor(model.version_color);
         }
 
-        // Display the loader if we're currently checking for updates for that application
-        if (app.isCurrentlyChecking()) {
-            loader.setVisibility(View.VISIBLE);
+        views.date.setText(model.date_label);
+        if (model.date_color == null) {
+            views.date.setTextColor(default_color);
         }
         else {
-            loader.setVisibility(View.INVISIBLE);
+            views.date.setTextColor(model.date_color);
+        }
+
+        // Icons loaded from the database are only decoded when their row becomes visible.
+        ImageView i = views.img;
+        if (app.getIconHash() != null) {
+            icons.display(app.getIconHash(), i);
+        }
+        else
+        {
+            // The icon could not be saved in the store.
+            icons.clear(i);
+            i.setImageDrawable(app.getIcon());
+        }
+
+        return convertView;
+    }
+
+    /**
+     * Returns the texts and colors displayed for an application, and computes them again if the
+     * application changed since they were last built.
+     */
+    private RowModel get_model(InstalledApp app)
+    {
+        RowModel model = models.get(app.getPackageName());
+        if (model != null)
+        {
+            if (model.app == app && model.revision == app.getRevision()) {
+                return model;
+            }
+            models.remove(app.getPackageName()); // Built from an older revision.
         }
+        model = new RowModel(app);
+
+        // Set application name
+        model.name = app.getDisplayName() != null ? app.getDisplayName() : app.getPackageName();
 
         // Set version. Check whether the application is up to date.
         String latest_version = app.getLatestVersion();
         if (app.isLastCheckFatalError())
         {
-            version.setText(app.getVersion() + " (" + latest_version + ")");
-            version.setTextColor(Color.GRAY);
+            model.version_label = app.getVersion() + " (" + latest_version + ")";
+            model.version_color = Color.GRAY;
         }
         else if (latest_version != null)
         {
-            if (app.getVersion().equals(latest_version))
+            if (!app.isUpdateAvailable())
             {
-                version.setText(app.getVersion());
-                version.setTextColor(Color.GREEN);
+                model.version_label = app.getVersion();
+                model.version_color = Color.GREEN;
             }
             else
             {
-                version.setText(app.getVersion() + " (Current: " + latest_version + ")");
-                version.setTextColor(Color.RED);
+                model.version_label = app.getVersion() + " (Current: " + latest_version + ")";
+                model.version_color = Color.RED;
             }
         }
         else {
-            version.setText(app.getVersion());
-            version.setTextColor(default_color);
+            model.version_label = app.getVersion();
         }
 
         // Set last check date
         String last_check_date = app.getLastCheckDate();
         if (last_check_date == null)
         {
-            date.setText("Last check: never.");
-            date.setTextColor(Color.GRAY);
+            model.date_label = "Last check: never.";
+            model.date_color = Color.GRAY;
         }
-        else
-        {
-            SimpleDateFormat sdf = new SimpleDateFormat();
-            date.setText("Last check: " + sdf.format(new Date(Long.parseLong(last_check_date) * 1000)));
-            date.setTextColor(default_color);
+        else {
+            model.date_label = "Last check: " + date_format.format(new Date(Long.parseLong(last_check_date) * 1000));
         }
 
-        if (app.getIcon() != null)
-        {
-            ImageView i = (ImageView) convertView.findViewById(R.id.img);
-            i.setImageDrawable(app.getIcon());
-        }
+        models.put(app.getPackageName(), model);
+        return model;
+    }
 
-        return convertView;
+    /**
+     * Forgets what was displayed for each application. Must be called when the list is reloaded or
+     * applications are removed from it, so that no model is kept for applications which are gone.
+     */
+    public void clearRowModels() {
+        models.clear();
     }
 
     /**
@@ -185,4 +233,45 @@ public class AppAdapter extends BaseAdapter
         show_system = true;
     }
 
+    /**
+     * The views of a row, so that they are only looked up when the row is inflated.
+     */
+    private static class RowViews
+    {
+        final TextView name;
+        final TextView version;
+        final TextView date;
+        final ImageView loader;
+        final ImageView img;
+
+        RowViews(View row)
+        {
+            View app_info = row.findViewById(R.id.app_info);
+            name = (TextView) app_info.findViewById(R.id.name);
+            version = (TextView) app_info.findViewById(R.id.version);
+            date = (TextView) app_info.findViewById(R.id.date);
+            loader = (ImageView) row.findViewById(R.id.loader);
+            img = (ImageView) row.findViewById(R.id.img);
+        }
+    }
+
+    /**
+     * The texts and colors displayed for an application, built from a given revision of it.
+     */
+    private static class RowModel
+    {
+        final InstalledApp app;
+        final int revision;
+        String name;
+        String version_label;
+        Integer version_color = null; // Null if the default text color of the row should be used.
+        String date_label;
+        Integer date_color = null;
+
+        RowModel(InstalledApp app)
+        {
+            this.app = app;
+            this.revision = app.getRevision();
+        }
+    }
 }
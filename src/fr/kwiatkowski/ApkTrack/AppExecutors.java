@@ -0,0 +1,169 @@
+/*
+ * Copyright (c) 2014
+ *
+ * ApkTrack is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ApkTrack is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ApkTrack.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fr.kwiatkowski.ApkTrack;
+
+import android.os.Process;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The thread pools shared by the whole application. Every background job goes through one of them
+ * instead of starting its own thread, so that the number of threads stays bounded.
+ * <ul>
+ *     <li><code>io</code>: network requests, database and file accesses.</li>
+ *     <li><code>cpu</code>: decoding and other computations, one thread per core.</li>
+ *     <li><code>checks</code>: version checks. A check mostly waits for the requests it sends on the IO
+ *     pool, which is why it must not run there itself: a full IO pool could never complete them.</li>
+ * </ul>
+ * Idle threads are stopped after a while, and all of them run with a background priority.
+ */
+public class AppExecutors
+{
+    /**
+     * Checks running at the same time, wherever they come from (update service or queued manual checks):
+     * one per connection kept alive to a website.
+     */
+    public static final int CHECK_THREADS = HttpClient.MAX_CONNECTIONS_PER_HOST;
+
+    /**
+     * Requests to different websites may be in flight for each of the running checks.
+     */
+    public static final int IO_THREADS = CHECK_THREADS * 3;
+    public static final int CPU_THREADS = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+
+    private static final long KEEP_ALIVE = 30; // Seconds
+
+    private static ExecutorService io = null;
+    private static ExecutorService cpu = null;
+    private static ExecutorService checks = null;
+
+    public static synchronized ExecutorService io()
+    {
+        if (io == null) {
+            io = create_pool("io", IO_THREADS);
+        }
+        return io;
+    }
+
+    public static synchronized ExecutorService cpu()
+    {
+        if (cpu == null) {
+            cpu = create_pool("cpu", CPU_THREADS);
+        }
+        return cpu;
+    }
+
+    public static synchronized ExecutorService checks()
+    {
+        if (checks == null) {
+            checks = create_pool("check", CHECK_THREADS);
+        }
+        return checks;
+    }
+
+    /**
+     * Returns an executor which runs its tasks one after the other, in submission order, on the IO
+     * pool. Used for jobs whose order matters, e.g. successive writes to the same file.
+     */
+    public static Executor newSerialIoExecutor() {
+        return new SerialExecutor(io());
+    }
+
+    private static ExecutorService create_pool(String name, int threads)
+    {
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, KEEP_ALIVE, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new NamedThreadFactory(name));
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+}
+
+/**
+ * Creates background-priority threads named after their pool, i.e. "ApkTrack-io-3".
+ */
+class NamedThreadFactory implements ThreadFactory
+{
+    private final String prefix;
+    private final AtomicInteger count = new AtomicInteger(1);
+
+    NamedThreadFactory(String name) {
+        this.prefix = "ApkTrack-" + name + "-";
+    }
+
+    @Override
+    public Thread newThread(final Runnable r)
+    {
+        return new Thread(new Runnable() {
+            @Override
+            public void run()
+            {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                r.run();
+            }
+        }, prefix + count.getAndIncrement());
+    }
+}
+
+/**
+ * Runs tasks one at a time on an underlying executor, in submission order.
+ */
+class SerialExecutor implements Executor
+{
+    private final Executor target;
+    private final ArrayDeque<Runnable> tasks = new ArrayDeque<Runnable>();
+    private Runnable active = null;
+
+    SerialExecutor(Executor target) {
+        this.target = target;
+    }
+
+    @Override
+    public synchronized void execute(final Runnable r)
+    {
+        tasks.offer(new Runnable() {
+            @Override
+            public void run()
+            {
+                try {
+                    r.run();
+                }
+                finally {
+                    schedule_next();
+                }
+            }
+        });
+        if (active == null) {
+            schedule_next();
+        }
+    }
+
+    private synchronized void schedule_next()
+    {
+        active = tasks.poll();
+        if (active != null) {
+            target.execute(active);
+        }
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright (c) 2014
+ *
+ * ApkTrack is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ApkTrack is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ApkTrack.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fr.kwiatkowski.ApkTrack;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * Differences between the applications known by ApkTrack and the ones currently installed on the device.
+ * Applications are matched on their package name through hash maps, so the diff is computed in linear time.
+ */
+public class AppListDiff
+{
+    /**
+     * Above this number of changed applications, re-sorting the whole list is cheaper than inserting
+     * them one by one.
+     */
+    private static final int MAX_INSERTIONS = 16;
+
+    private List<InstalledApp> added = new ArrayList<InstalledApp>();
+    private List<InstalledApp> removed = new ArrayList<InstalledApp>();
+    private List<InstalledApp> updated = new ArrayList<InstalledApp>();
+
+    /**
+     * @param known The applications known by ApkTrack.
+     * @param detected The applications currently installed on the device.
+     */
+    public AppListDiff(Collection<InstalledApp> known, Collection<InstalledApp> detected)
+    {
+        HashMap<String, InstalledApp> known_map = new HashMap<String, InstalledApp>(known.size() * 2);
+        for (InstalledApp app : known) {
+            known_map.put(app.getPackageName(), app);
+        }
+
+        for (InstalledApp app : detected)
+        {
+            InstalledApp previous = known_map.remove(app.getPackageName());
+            if (previous == null) {
+                added.add(app);
+            }
+            // The application has been updated, or no version was available in the past but there is one now.
+            else if (app.getVersion() == null ? previous.getVersion() != null : !app.getVersion().equals(previous.getVersion())) {
+                updated.add(app);
+            }
+        }
+
+        // Whatever wasn't matched has been uninstalled.
+        removed.addAll(known_map.values());
+    }
+
+    /**
+     * @return The applications which were installed since the last detection.
+     */
+    public List<InstalledApp> getAdded() {
+        return added;
+    }
+
+    /**
+     * @return The known applications which are not installed anymore.
+     */
+    public List<InstalledApp> getRemoved() {
+        return removed;
+    }
+
+    /**
+     * @return The new version of each application which was updated since the last detection.
+     */
+    public List<InstalledApp> getUpdated() {
+        return updated;
+    }
+
+    public boolean isEmpty() {
+        return added.isEmpty() && removed.isEmpty() && updated.isEmpty();
+    }
+
+    /**
+     * Applies the diff to a list of applications: removed applications are dropped, updated
+     * ones are replaced by their new version and new ones are appended. The list is not sorted.
+     * @param list The list to modify.
+     */
+    public void apply(List<InstalledApp> list)
+    {
+        HashMap<String, InstalledApp> replacements = new HashMap<String, InstalledApp>(
+                (added.size() + removed.size() + updated.size()) * 2);
+        for (InstalledApp app : removed) {
+            replacements.put(app.getPackageName(), null);
+        }
+        for (InstalledApp app : updated) {
+            replacements.put(app.getPackageName(), app);
+        }
+        for (InstalledApp app : added) {
+            replacements.put(app.getPackageName(), app);
+        }
+
+        ArrayList<InstalledApp> result = new ArrayList<InstalledApp>(list.size() + added.size());
+        for (InstalledApp app : list)
+        {
+            if (!replacements.containsKey(app.getPackageName())) {
+                result.add(app);
+            }
+            else
+            {
+                InstalledApp replacement = replacements.remove(app.getPackageName());
+                if (replacement != null) {
+                    result.add(replacement);
+                }
+            }
+        }
+        // New applications which were not in the list already.
+        for (InstalledApp app : added)
+        {
+            if (replacements.remove(app.getPackageName()) != null) {
+                result.add(app);
+            }
+        }
+
+        list.clear();
+        list.addAll(result);
+    }
+
+    /**
+     * Applies the diff to a sorted list of applications, and keeps it sorted.
+     * When few applications changed, they are placed with a binary search instead of sorting the whole list again.
+     * @param list The sorted list to modify.
+     * @param comparator The order of the list.
+     */
+    public void applySorted(List<InstalledApp> list, Comparator<InstalledApp> comparator)
+    {
+        if (added.size() + updated.size() > MAX_INSERTIONS)
+        {
+            apply(list);
+            Collections.sort(list, comparator);
+            return;
+        }
+
+        // Remove the uninstalled applications and the old version of the updated ones...
+        HashSet<String> dropped = new HashSet<String>((added.size() + removed.size() + updated.size()) * 2);
+        for (InstalledApp app : removed) {
+            dropped.add(app.getPackageName());
+        }
+        for (InstalledApp app : updated) {
+            dropped.add(app.getPackageName());
+        }
+        for (InstalledApp app : added) {
+            dropped.add(app.getPackageName()); // In case it was already in the list.
+        }
+        ArrayList<InstalledApp> result = new ArrayList<InstalledApp>(list.size() + added.size());
+        for (InstalledApp app : list)
+        {
+            if (!dropped.contains(app.getPackageName())) {
+                result.add(app);
+            }
+        }
+        list.clear();
+        list.addAll(result);
+
+        // ...then insert the new ones at their place.
+        for (InstalledApp app : updated) {
+            insertSorted(list, app, comparator);
+        }
+        for (InstalledApp app : added) {
+            insertSorted(list, app, comparator);
+        }
+    }
+
+    /**
+     * Inserts an application in a sorted list, at the position given by a binary search.
+     * @param list The sorted list.
+     * @param app The application to insert.
+     * @param comparator The order of the list.
+     */
+    public static void insertSorted(List<InstalledApp> list, InstalledApp app, Comparator<InstalledApp> comparator)
+    {
+        int index = Collections.binarySearch(list, app, comparator);
+        list.add(index < 0 ? -index - 1 : index, app);
+    }
+}
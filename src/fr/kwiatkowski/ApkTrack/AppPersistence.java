@@ -18,28 +18,48 @@
 package fr.kwiatkowski.ApkTrack;
 
 import android.content.Context;
-import android.content.res.Resources;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteStatement;
-import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
-import android.graphics.drawable.BitmapDrawable;
 import android.util.Log;
 
-import java.io.ByteArrayOutputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 
 public class AppPersistence extends SQLiteOpenHelper
 {
-    private Resources rsrc;
+    private IconStore icons;
 
-    public AppPersistence(Context context, Resources rsrc)
+    /**
+     * The columns of the apps table, in the order expected by <code>unserialize</code>.
+     */
+    private static final String APP_COLUMNS =
+            "package_name, name, version, latest_version, last_check, last_check_error, system_app, icon_hash";
+
+    /**
+     * The columns written by <code>updateApp</code>. The column at index i corresponds to the
+     * InstalledApp field flag (1 << i).
+     */
+    private static final String[] UPDATE_COLUMNS =
+            { "name", "version", "latest_version", "last_check", "last_check_error", "system_app" };
+
+    /**
+     * Compiled UPDATE statements, indexed by the set of fields they write.
+     */
+    private final SQLiteStatement[] update_statements = new SQLiteStatement[1 << UPDATE_COLUMNS.length];
+    private SQLiteStatement schedule_statement = null;
+    private SQLiteDatabase statements_db = null;
+
+    public AppPersistence(Context context)
     {
-        super(context, "apktrack.db", null, 2);
-        this.rsrc = rsrc;
+        super(context, "apktrack.db", null, 9);
+        this.icons = new IconStore(context);
     }
 
     @Override
@@ -53,109 +73,903 @@ public class AppPersistence extends SQLiteOpenHelper
                 "last_check TEXT," +
                 "last_check_error INTEGER," +
                 "system_app INTEGER," +
-                "icon BLOB)";
+                "icon_hash TEXT)";
+        db.execSQL(create_table);
+        create_page_cache_table(db);
+        create_journal_table(db);
+        create_source_stats_table(db);
+        create_user_sources_table(db);
+        create_check_schedule_table(db);
+        create_cycle_tables(db);
+    }
+
+    /**
+     * The page_cache table contains the HTTP validators (ETag / Last-Modified) returned by each website
+     * for each application, along with the version which was found on the page at that time.
+     */
+    private void create_page_cache_table(SQLiteDatabase db)
+    {
+        String create_table = "CREATE TABLE page_cache (" +
+                "package_name TEXT," +
+                "source TEXT," +
+                "etag TEXT," +
+                "last_modified TEXT," +
+                "version TEXT," +
+                "PRIMARY KEY (package_name, source))";
+        db.execSQL(create_table);
+    }
+
+    /**
+     * The package_journal table records the packages installed, updated or removed since the
+     * activity last loaded its application list.
+     */
+    private void create_journal_table(SQLiteDatabase db)
+    {
+        String create_table = "CREATE TABLE package_journal (" +
+                "id INTEGER PRIMARY KEY AUTOINCREMENT," +
+                "package_name TEXT," +
+                "change INTEGER)";
+        db.execSQL(create_table);
+    }
+
+    /**
+     * The source_stats table remembers, for each application and website, when a version was last found
+     * there and how many times in a row the website had nothing for it.
+     */
+    private void create_source_stats_table(SQLiteDatabase db)
+    {
+        String create_table = "CREATE TABLE source_stats (" +
+                "package_name TEXT," +
+                "source TEXT," +
+                "last_success INTEGER," +
+                "failures INTEGER," +
+                "PRIMARY KEY (package_name, source))";
+        db.execSQL(create_table);
+    }
+
+    /**
+     * The user_sources table contains the websites registered by the user (see <code>VersionSources</code>).
+     */
+    private void create_user_sources_table(SQLiteDatabase db)
+    {
+        String create_table = "CREATE TABLE user_sources (" +
+                "name TEXT PRIMARY KEY," +
+                "url TEXT," +
+                "regex TEXT)";
+        db.execSQL(create_table);
+    }
+
+    /**
+     * The check_schedule table contains, for each application, when a new version was last detected,
+     * the estimated time between two releases and when the next automatic check is due (see <code>CheckSchedule</code>).
+     */
+    private void create_check_schedule_table(SQLiteDatabase db)
+    {
+        String create_table = "CREATE TABLE check_schedule (" +
+                "package_name TEXT PRIMARY KEY," +
+                "last_change INTEGER," +
+                "release_interval INTEGER," +
+                "next_check INTEGER)";
         db.execSQL(create_table);
     }
 
+    /**
+     * The update_cycles table records the automatic update cycles, and cycle_progress the packages
+     * each unfinished cycle has already processed, so that an interrupted cycle can be resumed.
+     */
+    private void create_cycle_tables(SQLiteDatabase db)
+    {
+        String create_table = "CREATE TABLE update_cycles (" +
+                "id INTEGER PRIMARY KEY AUTOINCREMENT," +
+                "started INTEGER," +
+                "finished INTEGER)";
+        db.execSQL(create_table);
+        create_table = "CREATE TABLE cycle_progress (" +
+                "cycle_id INTEGER," +
+                "package_name TEXT," +
+                "PRIMARY KEY (cycle_id, package_name))";
+        db.execSQL(create_table);
+    }
 
     @Override
-    public void onUpgrade(SQLiteDatabase db, int oldver, int newver) {
-        db.execSQL("DROP TABLE IF EXISTS apps");
-        onCreate(db);
+    public void onUpgrade(SQLiteDatabase db, int oldver, int newver)
+    {
+        if (oldver < 2)
+        {
+            db.execSQL("DROP TABLE IF EXISTS apps");
+            db.execSQL("DROP TABLE IF EXISTS page_cache");
+            db.execSQL("DROP TABLE IF EXISTS package_journal");
+            db.execSQL("DROP TABLE IF EXISTS source_stats");
+            db.execSQL("DROP TABLE IF EXISTS user_sources");
+            db.execSQL("DROP TABLE IF EXISTS check_schedule");
+            db.execSQL("DROP TABLE IF EXISTS update_cycles");
+            db.execSQL("DROP TABLE IF EXISTS cycle_progress");
+            onCreate(db);
+            return;
+        }
+        if (oldver < 3) {
+            create_page_cache_table(db);
+        }
+        if (oldver < 4) {
+            move_icons_to_store(db);
+        }
+        if (oldver < 5) {
+            create_journal_table(db);
+        }
+        if (oldver < 6) {
+            create_source_stats_table(db);
+        }
+        if (oldver < 7) {
+            create_user_sources_table(db);
+        }
+        if (oldver < 8) {
+            create_check_schedule_table(db);
+        }
+        if (oldver < 9) {
+            create_cycle_tables(db);
+        }
+    }
+
+    /**
+     * Icons used to be stored as BLOBs in the apps table. Move them to the icon store and
+     * only keep a reference in the database.
+     */
+    private void move_icons_to_store(SQLiteDatabase db)
+    {
+        db.execSQL("ALTER TABLE apps ADD COLUMN icon_hash TEXT");
+        SQLiteStatement prepared = db.compileStatement("UPDATE apps SET icon_hash = ?, icon = NULL WHERE package_name = ?");
+        Cursor c = db.rawQuery("SELECT package_name, icon FROM apps WHERE icon IS NOT NULL;", null);
+        try
+        {
+            while (c.moveToNext())
+            {
+                String hash = icons.put(c.getBlob(1));
+                if (hash != null)
+                {
+                    prepared.bindString(1, hash);
+                    prepared.bindString(2, c.getString(0));
+                    prepared.execute();
+                }
+            }
+        }
+        finally {
+            c.close();
+        }
+    }
+
+    public synchronized void insertApp(InstalledApp app) {
+        insertApps(Collections.singletonList(app));
     }
 
-    public synchronized void insertApp(InstalledApp app)
+    /**
+     * Inserts or replaces a set of applications in the database.
+     * All the rows are written in a single transaction with the same prepared statement, so that
+     * saving hundreds of applications only costs one commit. Icons which were only referenced by the
+     * replaced rows are deleted from the store.
+     * @param apps The applications to save.
+     */
+    public synchronized void insertApps(Collection<InstalledApp> apps)
     {
+        if (apps.isEmpty()) {
+            return;
+        }
         SQLiteDatabase db = getWritableDatabase();
-        if (db != null)
+        if (db == null)
         {
-            String request;
-            ArrayList<Object> bind_args = new ArrayList<Object>();
-            bind_args.add(app.getPackageName());
-            bind_args.add(app.getDisplayName());
-            bind_args.add(app.getVersion());
-            bind_args.add(app.getLatestVersion());
-            bind_args.add(app.getLastCheckDate());
-            bind_args.add(app.isLastCheckFatalError());
-            bind_args.add(app.isSystemApp());
-
-            if (app.getIcon() != null && app.getIcon() instanceof BitmapDrawable)
+            Log.v("ApkTrack", "Could not open database to save " + apps.size() + " application(s)!");
+            return;
+        }
+
+        SQLiteStatement prepared_statement = db.compileStatement("INSERT OR REPLACE INTO apps (" + APP_COLUMNS + ") " +
+                "VALUES (?, ?, ?, ?, ?, ?, ?, ?)");
+        // Always returns a row, whose value is null if the application is not in the database.
+        SQLiteStatement previous_icon = db.compileStatement("SELECT (SELECT icon_hash FROM apps WHERE package_name = ?)");
+        ArrayList<Object> bind_args = new ArrayList<Object>(8);
+        HashSet<String> replaced_icons = new HashSet<String>();
+        List<String> unused_icons;
+        db.beginTransaction();
+        try
+        {
+            for (InstalledApp app : apps)
             {
-                request = "INSERT OR REPLACE INTO apps " +
-                    "(package_name, name, version, latest_version, last_check, last_check_error, system_app, icon) " +
-                    "VALUES (?, ?, ?, ?, ?, ?, ?, ?)";
-                Bitmap bmp = ((BitmapDrawable) app.getIcon()).getBitmap();
-                ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                bmp.compress(Bitmap.CompressFormat.PNG, 100, baos);
-                bind_args.add(baos.toByteArray());
-            }
-            else {
-                request = "INSERT OR REPLACE INTO apps " +
-                        "(package_name, name, version, latest_version, last_check, last_check_error, system_app)" +
-                        " VALUES (?, ?, ?, ?, ?, ?, ?)";
-            }
-            SQLiteStatement prepared_statement = db.compileStatement(request);
-            nullable_bind(bind_args, prepared_statement);
-            prepared_statement.execute();
+                previous_icon.bindString(1, app.getPackageName());
+                String previous_hash = previous_icon.simpleQueryForString();
+
+                // The icon is only written to the disk if it isn't in the store already. Once saved, it is
+                // released: the list displays it from the store, decoded at the size of the rows.
+                if (app.getIcon() != null)
+                {
+                    String hash = icons.put(app.getIcon());
+                    if (hash != null)
+                    {
+                        app.setIconHash(hash);
+                        app.setIcon(null);
+                    }
+                    else {
+                        app.setIconHash(previous_hash); // Could not be written: keep the icon which was saved.
+                    }
+                }
+
+                bind_args.clear();
+                bind_args.add(app.getPackageName());
+                bind_args.add(app.getDisplayName());
+                bind_args.add(app.getVersion());
+                bind_args.add(app.getLatestVersion());
+                bind_args.add(app.getLastCheckDate());
+                bind_args.add(app.isLastCheckFatalError());
+                bind_args.add(app.isSystemApp());
+                bind_args.add(app.getIconHash());
+
+                prepared_statement.clearBindings();
+                nullable_bind(bind_args, prepared_statement);
+                prepared_statement.execute();
+
+                if (previous_hash != null && !previous_hash.equals(app.getIconHash())) {
+                    replaced_icons.add(previous_hash);
+                }
+            }
+            unused_icons = find_unused_icons(db, replaced_icons);
+            db.setTransactionSuccessful();
+        }
+        finally
+        {
+            db.endTransaction();
+            prepared_statement.close();
+            previous_icon.close();
+        }
+
+        // Only delete the files once the rows referencing them are really gone.
+        for (String hash : unused_icons) {
+            icons.remove(hash);
+        }
+        for (InstalledApp app : apps) {
+            app.clearDirtyFields(InstalledApp.ALL_FIELDS);
         }
     }
 
+    /**
+     * Returns the icons which are not referenced by any application anymore. Icons are shared between
+     * applications with identical icons, so they can only be deleted once the last of them is gone.
+     * @param db The database, in the transaction which removed the references.
+     * @param hashes The icons whose references were removed.
+     * @return The icons which can be deleted from the store.
+     */
+    private List<String> find_unused_icons(SQLiteDatabase db, Collection<String> hashes)
+    {
+        ArrayList<String> unused = new ArrayList<String>();
+        if (hashes.isEmpty()) {
+            return unused;
+        }
+        SQLiteStatement icon_users = db.compileStatement("SELECT COUNT(*) FROM apps WHERE icon_hash = ?");
+        try
+        {
+            for (String hash : hashes)
+            {
+                icon_users.bindString(1, hash);
+                if (icon_users.simpleQueryForLong() == 0) {
+                    unused.add(hash);
+                }
+            }
+        }
+        finally {
+            icon_users.close();
+        }
+        return unused;
+    }
+
+    /**
+     * Saves the information of an application which is already in the database.
+     * Only the fields which were modified since the application was loaded or last saved are written.
+     * The icon is not written again: it only changes when the application is reinstalled, which goes
+     * through <code>insertApp</code>.
+     * @param app The application to save.
+     */
     public synchronized void updateApp(InstalledApp app)
     {
+        int dirty = app.getDirtyFields();
+        if (dirty == 0) {
+            return; // Nothing to save.
+        }
+
         SQLiteDatabase db = getWritableDatabase();
         if (db != null)
         {
-            String request;
-            ArrayList<Object> bind_args = new ArrayList<Object>();
-            bind_args.add(app.getDisplayName());
-            bind_args.add(app.getVersion());
-            bind_args.add(app.getLatestVersion());
-            bind_args.add(app.getLastCheckDate());
-            bind_args.add(app.isLastCheckFatalError());
-            bind_args.add(app.isSystemApp());
-
-            if (app.getIcon() != null && app.getIcon() instanceof BitmapDrawable)
+            SQLiteStatement prepared_statement = get_update_statement(db, dirty);
+            prepared_statement.clearBindings();
+            // The arguments are bound in the order in which get_update_statement wrote the columns.
+            int index = 1;
+            for (int i = 0 ; i < UPDATE_COLUMNS.length ; ++i)
             {
-                request = "UPDATE apps SET " +
-                          "name = ?, version = ?, latest_version = ?, last_check = ?, last_check_error = ?, system_app = ?, icon = ? " +
-                          "WHERE package_name = ?";
-                Bitmap bmp = ((BitmapDrawable) app.getIcon()).getBitmap();
-                ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                bmp.compress(Bitmap.CompressFormat.PNG, 100, baos);
-                bind_args.add(baos.toByteArray());
-            }
-            else {
-                request = "UPDATE apps SET " +
-                          "name = ?, version = ?, latest_version = ?, last_check = ?, last_check_error = ?, system_app = ? " +
-                          "WHERE package_name = ?";
-            }
-
-            bind_args.add(app.getPackageName());
-            SQLiteStatement prepared_statement = db.compileStatement(request);
-            nullable_bind(bind_args, prepared_statement);
+                if ((dirty & (1 << i)) != 0) {
+                    bind_value(prepared_statement, index++, get_field(app, 1 << i));
+                }
+            }
+            bind_value(prepared_statement, index, app.getPackageName());
 
             prepared_statement.execute();
+            app.clearDirtyFields(dirty);
         }
         else {
             Log.v("ApkTrack", "Could not open database to save " + app.getDisplayName() + "!");
         }
     }
 
+    /**
+     * Returns a compiled UPDATE statement writing only the given columns. Statements are compiled once
+     * per combination of columns and reused afterwards.
+     * @param db The database the statement is compiled for.
+     * @param fields A combination of InstalledApp.FIELD_* flags.
+     * @return A statement whose arguments are the requested columns in the order of UPDATE_COLUMNS,
+     * followed by the package name.
+     */
+    private SQLiteStatement get_update_statement(SQLiteDatabase db, int fields)
+    {
+        check_statements_db(db);
+        SQLiteStatement statement = update_statements[fields];
+        if (statement == null)
+        {
+            StringBuilder request = new StringBuilder("UPDATE apps SET ");
+            boolean first = true;
+            for (int i = 0 ; i < UPDATE_COLUMNS.length ; ++i)
+            {
+                if ((fields & (1 << i)) != 0)
+                {
+                    if (!first) {
+                        request.append(", ");
+                    }
+                    request.append(UPDATE_COLUMNS[i]).append(" = ?");
+                    first = false;
+                }
+            }
+            request.append(" WHERE package_name = ?");
+            statement = db.compileStatement(request.toString());
+            update_statements[fields] = statement;
+        }
+        return statement;
+    }
+
+    /**
+     * Drops the cached statements if they were compiled for another connection than the given one:
+     * statements belong to the connection they were compiled on.
+     */
+    private void check_statements_db(SQLiteDatabase db)
+    {
+        if (db != statements_db)
+        {
+            Arrays.fill(update_statements, null);
+            schedule_statement = null;
+            statements_db = db;
+        }
+    }
+
+    /**
+     * @return The value of the field identified by an InstalledApp.FIELD_* flag, as it should be bound.
+     */
+    private static Object get_field(InstalledApp app, int field)
+    {
+        switch (field)
+        {
+            case InstalledApp.FIELD_NAME:
+                return app.getDisplayName();
+            case InstalledApp.FIELD_VERSION:
+                return app.getVersion();
+            case InstalledApp.FIELD_LATEST_VERSION:
+                return app.getLatestVersion();
+            case InstalledApp.FIELD_LAST_CHECK:
+                return app.getLastCheckDate();
+            case InstalledApp.FIELD_LAST_CHECK_ERROR:
+                return app.isLastCheckFatalError();
+            case InstalledApp.FIELD_SYSTEM_APP:
+                return app.isSystemApp();
+            default:
+                throw new IllegalArgumentException("Unknown field " + field);
+        }
+    }
+
     /**
      * Deletes an application from the database.
      * @param app The application which should be removed.
      */
-    public synchronized void removeFromDatabase(InstalledApp app)
+    public synchronized void removeFromDatabase(InstalledApp app) {
+        removeFromDatabase(Collections.singletonList(app));
+    }
+
+    /**
+     * Deletes a set of applications from the database, in a single transaction.
+     * @param apps The applications which should be removed.
+     */
+    public synchronized void removeFromDatabase(Collection<InstalledApp> apps)
+    {
+        if (apps.isEmpty()) {
+            return;
+        }
+        SQLiteDatabase db = getWritableDatabase();
+        if (db == null) {
+            return;
+        }
+
+        SQLiteStatement delete_app = db.compileStatement("DELETE FROM apps WHERE package_name = ?");
+        SQLiteStatement delete_page = db.compileStatement("DELETE FROM page_cache WHERE package_name = ?");
+        SQLiteStatement delete_stats = db.compileStatement("DELETE FROM source_stats WHERE package_name = ?");
+        SQLiteStatement delete_schedule = db.compileStatement("DELETE FROM check_schedule WHERE package_name = ?");
+        HashSet<String> removed_icons = new HashSet<String>();
+        List<String> unused_icons;
+        db.beginTransaction();
+        try
+        {
+            for (InstalledApp app : apps)
+            {
+                delete_app.bindString(1, app.getPackageName());
+                delete_app.execute();
+                delete_page.bindString(1, app.getPackageName());
+                delete_page.execute();
+                delete_stats.bindString(1, app.getPackageName());
+                delete_stats.execute();
+                delete_schedule.bindString(1, app.getPackageName());
+                delete_schedule.execute();
+                if (app.getIconHash() != null) {
+                    removed_icons.add(app.getIconHash());
+                }
+            }
+            unused_icons = find_unused_icons(db, removed_icons);
+            db.setTransactionSuccessful();
+        }
+        finally
+        {
+            db.endTransaction();
+            delete_app.close();
+            delete_page.close();
+            delete_stats.close();
+            delete_schedule.close();
+        }
+
+        // Only delete the files once the rows referencing them are really gone.
+        for (String hash : unused_icons) {
+            icons.remove(hash);
+        }
+    }
+
+    /**
+     * Records a change made to the installed packages, so that the activity can replay it.
+     * @param package_name The package which was changed.
+     * @param change One of the PackageChange constants.
+     */
+    public synchronized void journalPackageChange(String package_name, int change)
+    {
+        SQLiteDatabase db = getWritableDatabase();
+        if (db != null)
+        {
+            SQLiteStatement prepared = db.compileStatement("INSERT INTO package_journal (package_name, change) VALUES (?, ?)");
+            try
+            {
+                prepared.bindString(1, package_name);
+                prepared.bindLong(2, change);
+                prepared.execute();
+            }
+            finally {
+                prepared.close();
+            }
+        }
+    }
+
+    /**
+     * @return The changes recorded in the journal, oldest first.
+     */
+    public synchronized List<PackageChange> getPackageChanges()
+    {
+        ArrayList<PackageChange> res = new ArrayList<PackageChange>();
+        SQLiteDatabase db = getReadableDatabase();
+        if (db == null) {
+            return res;
+        }
+        Cursor c = db.rawQuery("SELECT id, package_name, change FROM package_journal ORDER BY id;", null);
+        try
+        {
+            while (c.moveToNext()) {
+                res.add(new PackageChange(c.getLong(0), c.getString(1), c.getInt(2)));
+            }
+        }
+        finally {
+            c.close();
+        }
+        return res;
+    }
+
+    /**
+     * @return The identifier of the most recent journal entry, or 0 if the journal is empty.
+     */
+    public synchronized long getPackageJournalHead()
+    {
+        SQLiteDatabase db = getReadableDatabase();
+        if (db == null) {
+            return 0;
+        }
+        SQLiteStatement prepared = db.compileStatement("SELECT IFNULL(MAX(id), 0) FROM package_journal");
+        try {
+            return prepared.simpleQueryForLong();
+        }
+        finally {
+            prepared.close();
+        }
+    }
+
+    /**
+     * Removes the journal entries which have been taken into account.
+     * @param last_id The identifier of the last entry to remove.
+     */
+    public synchronized void clearPackageChanges(long last_id)
+    {
+        SQLiteDatabase db = getWritableDatabase();
+        if (db != null)
+        {
+            SQLiteStatement prepared = db.compileStatement("DELETE FROM package_journal WHERE id <= ?");
+            try
+            {
+                prepared.bindLong(1, last_id);
+                prepared.execute();
+            }
+            finally {
+                prepared.close();
+            }
+        }
+    }
+
+    /**
+     * @return The definition of each user-defined source: its name, URL template and regular expression.
+     */
+    public synchronized List<String[]> getUserSources()
+    {
+        ArrayList<String[]> res = new ArrayList<String[]>();
+        SQLiteDatabase db = getReadableDatabase();
+        if (db == null) {
+            return res;
+        }
+        Cursor c = db.rawQuery("SELECT name, url, regex FROM user_sources ORDER BY rowid;", null);
+        try
+        {
+            while (c.moveToNext()) {
+                res.add(new String[] { c.getString(0), c.getString(1), c.getString(2) });
+            }
+        }
+        finally {
+            c.close();
+        }
+        return res;
+    }
+
+    /**
+     * Saves a user-defined source. A source with the same name is replaced.
+     * @param name The name of the source.
+     * @param url The URL template of the source.
+     * @param regex The regular expression extracting the version.
+     */
+    public synchronized void saveUserSource(String name, String url, String regex)
+    {
+        SQLiteDatabase db = getWritableDatabase();
+        if (db != null)
+        {
+            SQLiteStatement prepared = db.compileStatement("INSERT OR REPLACE INTO user_sources (name, url, regex) VALUES (?, ?, ?)");
+            prepared.bindString(1, name);
+            prepared.bindString(2, url);
+            prepared.bindString(3, regex);
+            prepared.execute();
+        }
+    }
+
+    /**
+     * Deletes a user-defined source, along with the information gathered through it.
+     * @param name The name of the source.
+     */
+    public synchronized void deleteUserSource(String name)
+    {
+        SQLiteDatabase db = getWritableDatabase();
+        if (db != null)
+        {
+            SQLiteStatement prepared = db.compileStatement("DELETE FROM user_sources WHERE name = ?");
+            prepared.bindString(1, name);
+            prepared.execute();
+
+            prepared = db.compileStatement("DELETE FROM page_cache WHERE source = ?");
+            prepared.bindString(1, name);
+            prepared.execute();
+
+            prepared = db.compileStatement("DELETE FROM source_stats WHERE source = ?");
+            prepared.bindString(1, name);
+            prepared.execute();
+        }
+    }
+
+    /**
+     * Returns how each website fared for an application.
+     * @param package_name The name of the application.
+     * @return The statistics of each website which was queried for the application, indexed by source.
+     */
+    public synchronized HashMap<String, SourceStats> getSourceStats(String package_name)
+    {
+        HashMap<String, SourceStats> res = new HashMap<String, SourceStats>();
+        SQLiteDatabase db = getReadableDatabase();
+        if (db == null) {
+            return res;
+        }
+        Cursor c = db.rawQuery("SELECT source, last_success, failures FROM source_stats WHERE package_name = ?;",
+                new String[] { package_name });
+        try
+        {
+            while (c.moveToNext()) {
+                res.put(c.getString(0), new SourceStats(c.getLong(1), c.getInt(2)));
+            }
+        }
+        finally {
+            c.close();
+        }
+        return res;
+    }
+
+    /**
+     * Records that a version was found for an application on a website.
+     * @param package_name The name of the application.
+     * @param source The website which returned the version.
+     */
+    public synchronized void recordSourceSuccess(String package_name, String source)
+    {
+        SQLiteDatabase db = getWritableDatabase();
+        if (db != null)
+        {
+            SQLiteStatement prepared = db.compileStatement("INSERT OR REPLACE INTO source_stats " +
+                    "(package_name, source, last_success, failures) VALUES (?, ?, ?, 0)");
+            prepared.bindString(1, package_name);
+            prepared.bindString(2, source);
+            prepared.bindLong(3, System.currentTimeMillis() / 1000L);
+            prepared.execute();
+        }
+    }
+
+    /**
+     * Records that a website had no version for an application.
+     * @param package_name The name of the application.
+     * @param source The website which failed.
+     */
+    public synchronized void recordSourceFailure(String package_name, String source)
     {
         SQLiteDatabase db = getWritableDatabase();
         if (db != null)
         {
-            SQLiteStatement prepared = db.compileStatement("DELETE FROM apps WHERE package_name = ?");
-            prepared.bindString(1, app.getPackageName());
+            SQLiteStatement prepared = db.compileStatement("INSERT OR REPLACE INTO source_stats " +
+                    "(package_name, source, last_success, failures) VALUES (?, ?, " +
+                    "(SELECT last_success FROM source_stats WHERE package_name = ?1 AND source = ?2), " +
+                    "IFNULL((SELECT failures FROM source_stats WHERE package_name = ?1 AND source = ?2), 0) + 1)");
+            prepared.bindString(1, package_name);
+            prepared.bindString(2, source);
             prepared.execute();
         }
     }
 
+    /**
+     * Returns the automatic check schedule of every application which has one.
+     * @return The schedules, indexed by package name.
+     */
+    public synchronized HashMap<String, CheckSchedule> getCheckSchedules()
+    {
+        HashMap<String, CheckSchedule> res = new HashMap<String, CheckSchedule>();
+        SQLiteDatabase db = getReadableDatabase();
+        if (db == null) {
+            return res;
+        }
+        Cursor c = db.rawQuery("SELECT package_name, last_change, release_interval, next_check FROM check_schedule;", null);
+        try
+        {
+            while (c.moveToNext()) {
+                res.put(c.getString(0), new CheckSchedule(c.getLong(1), c.getLong(2), c.getLong(3)));
+            }
+        }
+        finally {
+            c.close();
+        }
+        return res;
+    }
+
+    /**
+     * Updates the schedule of an application after a successful check.
+     * @param package_name The name of the application.
+     * @param version_changed Whether the check found a different version than the previous one.
+     */
+    public synchronized void recordCheck(String package_name, boolean version_changed)
+    {
+        SQLiteDatabase db = getWritableDatabase();
+        if (db == null) {
+            return;
+        }
+        CheckSchedule previous = null;
+        Cursor c = db.rawQuery("SELECT last_change, release_interval, next_check FROM check_schedule WHERE package_name = ?;",
+                new String[] { package_name });
+        try
+        {
+            if (c.moveToFirst()) {
+                previous = new CheckSchedule(c.getLong(0), c.getLong(1), c.getLong(2));
+            }
+        }
+        finally {
+            c.close();
+        }
+
+        CheckSchedule next = CheckSchedule.afterCheck(previous, System.currentTimeMillis() / 1000L, version_changed);
+        // Compiled once and reused, like the UPDATE statements: this runs after every check.
+        check_statements_db(db);
+        if (schedule_statement == null)
+        {
+            schedule_statement = db.compileStatement("INSERT OR REPLACE INTO check_schedule " +
+                    "(package_name, last_change, release_interval, next_check) VALUES (?, ?, ?, ?)");
+        }
+        SQLiteStatement prepared = schedule_statement;
+        prepared.bindString(1, package_name);
+        prepared.bindLong(2, next.getLastChange());
+        prepared.bindLong(3, next.getReleaseInterval());
+        prepared.bindLong(4, next.getNextCheck());
+        prepared.execute();
+    }
+
+    /**
+     * Returns the update cycle which should be run: the last unfinished one if it was started recently,
+     * or a new one. Older unfinished cycles are abandoned.
+     * @param max_age How long an unfinished cycle may be resumed after it started, in seconds.
+     * @return The id of the cycle, or -1 if the database is not available.
+     */
+    public synchronized long resumeOrStartCycle(long max_age)
+    {
+        SQLiteDatabase db = getWritableDatabase();
+        if (db == null) {
+            return -1;
+        }
+        long now = System.currentTimeMillis() / 1000L;
+        db.beginTransaction();
+        try
+        {
+            Cursor c = db.rawQuery("SELECT id, started FROM update_cycles WHERE finished IS NULL ORDER BY id DESC LIMIT 1;", null);
+            try
+            {
+                if (c.moveToFirst() && now - c.getLong(1) < max_age)
+                {
+                    db.setTransactionSuccessful();
+                    return c.getLong(0);
+                }
+            }
+            finally {
+                c.close();
+            }
+
+            db.execSQL("DELETE FROM cycle_progress");
+            db.execSQL("DELETE FROM update_cycles");
+            SQLiteStatement prepared = db.compileStatement("INSERT INTO update_cycles (started) VALUES (?)");
+            prepared.bindLong(1, now);
+            long id = prepared.executeInsert();
+            db.setTransactionSuccessful();
+            return id;
+        }
+        finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * @param cycle_id The id of an update cycle.
+     * @return The packages which have already been processed during that cycle.
+     */
+    public synchronized HashSet<String> getCycleProgress(long cycle_id)
+    {
+        HashSet<String> res = new HashSet<String>();
+        SQLiteDatabase db = getReadableDatabase();
+        if (db == null) {
+            return res;
+        }
+        Cursor c = db.rawQuery("SELECT package_name FROM cycle_progress WHERE cycle_id = ?;",
+                new String[] { String.valueOf(cycle_id) });
+        try
+        {
+            while (c.moveToNext()) {
+                res.add(c.getString(0));
+            }
+        }
+        finally {
+            c.close();
+        }
+        return res;
+    }
+
+    /**
+     * Records that a package has been processed during an update cycle.
+     * @param cycle_id The id of the cycle.
+     * @param package_name The name of the package.
+     */
+    public synchronized void recordCycleProgress(long cycle_id, String package_name)
+    {
+        SQLiteDatabase db = getWritableDatabase();
+        if (db != null)
+        {
+            SQLiteStatement prepared = db.compileStatement("INSERT OR IGNORE INTO cycle_progress " +
+                    "(cycle_id, package_name) VALUES (?, ?)");
+            prepared.bindLong(1, cycle_id);
+            prepared.bindString(2, package_name);
+            prepared.execute();
+        }
+    }
+
+    /**
+     * Marks an update cycle as complete. Its progress is not needed anymore.
+     * @param cycle_id The id of the cycle.
+     */
+    public synchronized void finishCycle(long cycle_id)
+    {
+        SQLiteDatabase db = getWritableDatabase();
+        if (db == null) {
+            return;
+        }
+        db.beginTransaction();
+        try
+        {
+            SQLiteStatement prepared = db.compileStatement("DELETE FROM cycle_progress WHERE cycle_id = ?");
+            prepared.bindLong(1, cycle_id);
+            prepared.execute();
+            prepared = db.compileStatement("UPDATE update_cycles SET finished = ? WHERE id = ?");
+            prepared.bindLong(1, System.currentTimeMillis() / 1000L);
+            prepared.bindLong(2, cycle_id);
+            prepared.execute();
+            db.setTransactionSuccessful();
+        }
+        finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Returns the validators saved the last time a page was downloaded for an application.
+     * @param package_name The name of the application.
+     * @param source The website the page comes from.
+     * @return The cached information, or null if the page was never successfully parsed.
+     */
+    public synchronized CachedPage getCachedPage(String package_name, String source)
+    {
+        SQLiteDatabase db = getReadableDatabase();
+        if (db == null) {
+            return null;
+        }
+        Cursor c = db.rawQuery("SELECT etag, last_modified, version FROM page_cache WHERE package_name = ? AND source = ?;",
+                new String[] { package_name, source });
+        try
+        {
+            if (!c.moveToFirst()) {
+                return null;
+            }
+            return new CachedPage(c.getString(0), c.getString(1), c.getString(2));
+        }
+        finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Saves the validators returned by a website, so that the page is only downloaded again if it changed.
+     * @param package_name The name of the application.
+     * @param source The website the page comes from.
+     * @param page The validators and the version found on the page.
+     */
+    public synchronized void saveCachedPage(String package_name, String source, CachedPage page)
+    {
+        SQLiteDatabase db = getWritableDatabase();
+        if (db != null)
+        {
+            ArrayList<Object> bind_args = new ArrayList<Object>();
+            bind_args.add(package_name);
+            bind_args.add(source);
+            bind_args.add(page.getEtag());
+            bind_args.add(page.getLastModified());
+            bind_args.add(page.getVersion());
+            SQLiteStatement prepared_statement = db.compileStatement("INSERT OR REPLACE INTO page_cache " +
+                    "(package_name, source, etag, last_modified, version) VALUES (?, ?, ?, ?, ?)");
+            nullable_bind(bind_args, prepared_statement);
+            prepared_statement.execute();
+        }
+    }
+
     /**
      * Unserializes an InstalledApp stored inside the database.
      * @param c A cursor pointing to the app to unserialize
@@ -172,14 +986,11 @@ public class AppPersistence extends SQLiteOpenHelper
         app.setLastCheckDate(c.getString(4));
         app.setLastCheckFatalError(c.getLong(5) == 1);
 
-        // Reload icon
-        byte[] raw = c.getBlob(7);
-        if (raw != null && rsrc != null)
-        {
-            Bitmap bmp = BitmapFactory.decodeByteArray(raw, 0, raw.length);
-            BitmapDrawable icon = new BitmapDrawable(rsrc, bmp);
-            app.setIcon(icon);
-        }
+        // The icon itself is not decoded here: it is loaded on demand when the application is displayed.
+        app.setIconHash(c.getString(7));
+
+        // The object reflects what is in the database.
+        app.clearDirtyFields(InstalledApp.ALL_FIELDS);
 
         return app;
     }
@@ -195,7 +1006,7 @@ public class AppPersistence extends SQLiteOpenHelper
         if (db == null) {
             return null;
         }
-        Cursor c = db.rawQuery( "SELECT * FROM apps WHERE package_name = ?;", new String[]{ package_name });
+        Cursor c = db.rawQuery("SELECT " + APP_COLUMNS + " FROM apps WHERE package_name = ?;", new String[]{ package_name });
         if (!c.moveToFirst()) { // False if the cursor is empty
             return null;
         }
@@ -215,7 +1026,7 @@ public class AppPersistence extends SQLiteOpenHelper
         if (db == null) {
             return res;
         }
-        Cursor c = db.rawQuery( "SELECT * FROM apps;", null);
+        Cursor c = db.rawQuery("SELECT " + APP_COLUMNS + " FROM apps;", null);
         if (c.moveToFirst())
         {
             do {
@@ -234,22 +1045,32 @@ public class AppPersistence extends SQLiteOpenHelper
      */
     private void nullable_bind(ArrayList<Object> args, SQLiteStatement p)
     {
-        for (int i = 0 ; i < args.size() ; ++i)
+        for (int i = 0 ; i < args.size() ; ++i) {
+            bind_value(p, i + 1, args.get(i));
+        }
+    }
+
+    /**
+     * Binds a single value, which may be null, to a prepared statement.
+     * @param p The prepared statement to bind.
+     * @param index The 1-based index of the argument.
+     * @param value The value to bind.
+     */
+    private static void bind_value(SQLiteStatement p, int index, Object value)
+    {
+        if (value != null)
         {
-            if (args.get(i) != null)
-            {
-                if (args.get(i) instanceof String)
-                    p.bindString(i + 1, (String) args.get(i));
-                else if (args.get(i) instanceof Boolean)
-                    p.bindLong(i + 1, (Boolean) args.get(i) ? 1 : 0);
-                else if (args.get(i) instanceof byte[])
-                    p.bindBlob(i + 1, (byte[]) args.get(i));
-                else
-                    throw new UnsupportedOperationException("Please implement default binding for " + args.get(i).getClass());
-            }
-            else {
-                p.bindNull(i + 1);
-            }
+            if (value instanceof String)
+                p.bindString(index, (String) value);
+            else if (value instanceof Boolean)
+                p.bindLong(index, (Boolean) value ? 1 : 0);
+            else if (value instanceof byte[])
+                p.bindBlob(index, (byte[]) value);
+            else
+                throw new UnsupportedOperationException("Please implement default binding for " + value.getClass());
+        }
+        else {
+            p.bindNull(index);
         }
     }
 }
@@ -0,0 +1,74 @@
+/*
+ * Copyright (c) 2014
+ *
+ * ApkTrack is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ApkTrack is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ApkTrack.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fr.kwiatkowski.ApkTrack;
+
+import android.graphics.Bitmap;
+
+import java.util.ArrayList;
+
+/**
+ * Bitmaps which are not displayed anymore, kept so that their memory can be reused to decode other icons
+ * (see <code>BitmapFactory.Options.inBitmap</code>) instead of allocating a new bitmap every time.
+ */
+public class BitmapPool
+{
+    private final int max_bitmaps;
+    private final ArrayList<Bitmap> bitmaps;
+
+    /**
+     * @param max_bitmaps The number of bitmaps kept at most. Extra bitmaps are left to the garbage collector.
+     */
+    public BitmapPool(int max_bitmaps)
+    {
+        this.max_bitmaps = max_bitmaps;
+        this.bitmaps = new ArrayList<Bitmap>(max_bitmaps);
+    }
+
+    /**
+     * Takes a bitmap out of the pool.
+     * @param byte_count The number of bytes the bitmap has to be able to hold.
+     * @return The smallest bitmap large enough, or null if there is none.
+     */
+    public synchronized Bitmap get(int byte_count)
+    {
+        int best = -1;
+        for (int i = 0 ; i < bitmaps.size() ; ++i)
+        {
+            int size = bitmaps.get(i).getAllocationByteCount();
+            if (size >= byte_count && (best < 0 || size < bitmaps.get(best).getAllocationByteCount())) {
+                best = i;
+            }
+        }
+        return best < 0 ? null : bitmaps.remove(best);
+    }
+
+    /**
+     * Gives a bitmap back to the pool. The caller must make sure it isn't displayed anywhere anymore.
+     * @param bitmap The bitmap to recycle.
+     */
+    public synchronized void put(Bitmap bitmap)
+    {
+        if (bitmap == null || !bitmap.isMutable() || bitmap.isRecycled()) {
+            return;
+        }
+        if (bitmaps.size() >= max_bitmaps) {
+            bitmaps.remove(0); // Drop the oldest one.
+        }
+        bitmaps.add(bitmap);
+    }
+}
@@ -0,0 +1,47 @@
+/*
+ * Copyright (c) 2014
+ *
+ * ApkTrack is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ApkTrack is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ApkTrack.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fr.kwiatkowski.ApkTrack;
+
+/**
+ * The HTTP validators returned by a website for a page, and the version which was read on it.
+ */
+class CachedPage
+{
+    private String etag;
+    private String last_modified;
+    private String version;
+
+    CachedPage(String etag, String last_modified, String version)
+    {
+        this.etag = etag;
+        this.last_modified = last_modified;
+        this.version = version;
+    }
+
+    public String getEtag() {
+        return etag;
+    }
+
+    public String getLastModified() {
+        return last_modified;
+    }
+
+    public String getVersion() {
+        return version;
+    }
+}
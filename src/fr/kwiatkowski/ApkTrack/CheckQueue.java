@@ -0,0 +1,257 @@
+/*
+ * Copyright (c) 2014
+ *
+ * ApkTrack is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ApkTrack is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ApkTrack.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fr.kwiatkowski.ApkTrack;
+
+import android.content.res.Resources;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+
+/**
+ * Queue of the version checks requested from the user interface.
+ * A package is never queued twice: requesting a check for an application which is already waiting or being
+ * checked has no effect. Only a few checks are running at any time, the others wait in the queue as plain
+ * applications, so that checking all applications on a slow network doesn't create hundreds of tasks.
+ * The queue can be paused or cancelled as a whole, and reports its progress.
+ * All methods must be called from the UI thread.
+ */
+public class CheckQueue implements VersionGetTask.Listener
+{
+    /**
+     * Number of checks running at the same time.
+     */
+    public static final int MAX_RUNNING = UpdateCheckEngine.MAX_PARALLEL_CHECKS;
+
+    /**
+     * Notified on the UI thread whenever the progress or the state of the queue changes.
+     */
+    public interface Listener
+    {
+        void onQueueChanged(CheckQueue queue);
+    }
+
+    private AppAdapter adapter;
+    private AppPersistence persistence;
+    private Resources resources;
+    private Listener listener;
+
+    private ArrayDeque<InstalledApp> pending = new ArrayDeque<InstalledApp>();
+    private HashSet<String> pending_packages = new HashSet<String>();
+    private HashMap<String, VersionGetTask> running = new HashMap<String, VersionGetTask>();
+    private boolean paused = false;
+
+    // Progress of the current batch, reset when the queue becomes idle.
+    private int total = 0;
+    private int completed = 0;
+    private long batch_start = 0;
+
+    /**
+     * @param adapter The adapter to notify when an application has been checked.
+     * @param persistence A persistence object to save the results.
+     * @param resources The resources used to access the localized strings.
+     * @param listener Notified when the progress changes. May be null.
+     */
+    public CheckQueue(AppAdapter adapter, AppPersistence persistence, Resources resources, Listener listener)
+    {
+        this.adapter = adapter;
+        this.persistence = persistence;
+        this.resources = resources;
+        this.listener = listener;
+    }
+
+    /**
+     * Requests a version check for an application.
+     * @param app The application to check.
+     * @param urgent If true, the application is checked before the ones already waiting (i.e. the user clicked it).
+     */
+    public void enqueue(InstalledApp app, boolean urgent)
+    {
+        if (add(app, urgent))
+        {
+            dispatch();
+            notify_listener();
+        }
+    }
+
+    /**
+     * Requests a version check for several applications, after the ones already waiting.
+     */
+    public void enqueueAll(Collection<InstalledApp> apps)
+    {
+        boolean added = false;
+        for (InstalledApp app : apps) {
+            added |= add(app, false);
+        }
+        if (added)
+        {
+            dispatch();
+            notify_listener();
+        }
+    }
+
+    /**
+     * Stops starting new checks. The ones which are running are allowed to finish.
+     */
+    public void pause()
+    {
+        paused = true;
+        notify_listener();
+    }
+
+    public void resume()
+    {
+        paused = false;
+        dispatch();
+        notify_listener();
+    }
+
+    /**
+     * Forgets the waiting applications and aborts the running checks.
+     */
+    public void cancel()
+    {
+        Log.v("ApkTrack", "Cancelling " + (pending.size() + running.size()) + " version checks.");
+        for (InstalledApp app : pending) {
+            app.setCurrentlyChecking(false);
+        }
+        pending.clear();
+        pending_packages.clear();
+        paused = false;
+        // The tasks report back through onCheckFinished once they have stopped.
+        for (VersionGetTask task : new ArrayList<VersionGetTask>(running.values())) {
+            task.cancel(true);
+        }
+        adapter.notifyDataSetChanged();
+        reset_if_idle();
+        notify_listener();
+    }
+
+    @Override
+    public void onCheckFinished(VersionGetTask task)
+    {
+        running.remove(task.getApp().getPackageName());
+        ++completed;
+        dispatch();
+        reset_if_idle();
+        notify_listener();
+    }
+
+    /**
+     * @return Whether checks are waiting or running.
+     */
+    public boolean isActive() {
+        return !pending.isEmpty() || !running.isEmpty();
+    }
+
+    public boolean isPaused() {
+        return paused;
+    }
+
+    /**
+     * @return The number of applications requested since the queue was last idle.
+     */
+    public int getTotal() {
+        return total;
+    }
+
+    /**
+     * @return The number of those applications which have been checked.
+     */
+    public int getCompleted() {
+        return completed;
+    }
+
+    /**
+     * Estimates the remaining time from the throughput observed so far.
+     * @return The estimated number of seconds until the queue is empty, or -1 if it is unknown.
+     */
+    public long getRemainingTime()
+    {
+        if (completed == 0 || paused) {
+            return -1;
+        }
+        long elapsed = System.currentTimeMillis() - batch_start;
+        return elapsed * (total - completed) / completed / 1000;
+    }
+
+    private boolean add(InstalledApp app, boolean urgent)
+    {
+        String package_name = app.getPackageName();
+        if (running.containsKey(package_name)) {
+            return false;
+        }
+        if (pending_packages.contains(package_name))
+        {
+            if (!urgent) {
+                return false;
+            }
+            pending.remove(app); // Moved to the front of the queue below.
+        }
+        else
+        {
+            if (total == 0) {
+                batch_start = System.currentTimeMillis();
+            }
+            ++total;
+            pending_packages.add(package_name);
+            app.setCurrentlyChecking(true); // The loader icon will be displayed from here on.
+        }
+
+        if (urgent) {
+            pending.addFirst(app);
+        }
+        else {
+            pending.addLast(app);
+        }
+        return true;
+    }
+
+    private void dispatch()
+    {
+        while (!paused && running.size() < MAX_RUNNING && !pending.isEmpty())
+        {
+            InstalledApp app = pending.poll();
+            pending_packages.remove(app.getPackageName());
+            VersionGetTask task = new VersionGetTask(app, adapter, persistence, resources);
+            task.setListener(this);
+            running.put(app.getPackageName(), task);
+            task.executeOnExecutor(AppExecutors.checks());
+        }
+        adapter.notifyDataSetChanged();
+    }
+
+    private void reset_if_idle()
+    {
+        if (!isActive())
+        {
+            total = 0;
+            completed = 0;
+        }
+    }
+
+    private void notify_listener()
+    {
+        if (listener != null) {
+            listener.onQueueChanged(this);
+        }
+    }
+}
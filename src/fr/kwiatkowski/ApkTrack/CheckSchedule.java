@@ -0,0 +1,127 @@
+/*
+ * Copyright (c) 2014
+ *
+ * ApkTrack is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ApkTrack is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ApkTrack.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fr.kwiatkowski.ApkTrack;
+
+/**
+ * When an application should be checked again, based on how often new versions have been published for it.
+ * The time between two releases is estimated by exponential smoothing of the observed gaps, and the
+ * application is polled a few times per estimated gap. Applications whose release rhythm is unknown are
+ * checked on every cycle, as they used to be.
+ * All times are expressed in seconds since the epoch.
+ */
+public class CheckSchedule
+{
+    /**
+     * Period of the automatic update cycles, in milliseconds. The alarm (<code>PollReciever</code>) and the
+     * cycle policies all derive from it. Defined here, since this class doesn't depend on Android.
+     */
+    public static final long CYCLE_PERIOD = 24 * 60 * 60 * 1000L;
+
+    /**
+     * Shortest delay between two automatic checks: one update cycle.
+     */
+    public static final long MIN_INTERVAL = CYCLE_PERIOD / 1000;
+
+    /**
+     * Longest delay between two automatic checks, so that no update goes unnoticed for too long.
+     */
+    public static final long MAX_INTERVAL = 7 * MIN_INTERVAL;
+
+    /**
+     * Weight of the last observed gap in the estimation.
+     */
+    private static final double SMOOTHING = 0.3;
+
+    /**
+     * Number of checks performed per estimated gap between releases.
+     */
+    private static final int CHECKS_PER_RELEASE = 4;
+
+    private long last_change;
+    private long release_interval;
+    private long next_check;
+
+    /**
+     * @param last_change The time at which a new version was last detected, or 0 if it never was.
+     * @param release_interval The estimated time between two releases, or 0 if it is unknown.
+     * @param next_check The time at which the application is due for a check.
+     */
+    CheckSchedule(long last_change, long release_interval, long next_check)
+    {
+        this.last_change = last_change;
+        this.release_interval = release_interval;
+        this.next_check = next_check;
+    }
+
+    /**
+     * Computes the schedule following a successful check.
+     * @param previous The schedule before the check, or null if the application has none yet.
+     * @param now The time of the check.
+     * @param version_changed Whether the check returned a different version than the previous one.
+     * @return The new schedule.
+     */
+    public static CheckSchedule afterCheck(CheckSchedule previous, long now, boolean version_changed)
+    {
+        long last_change = previous == null ? 0 : previous.last_change;
+        long release_interval = previous == null ? 0 : previous.release_interval;
+
+        if (version_changed)
+        {
+            if (last_change > 0 && now > last_change)
+            {
+                long gap = now - last_change;
+                release_interval = release_interval == 0 ? gap :
+                        (long) (SMOOTHING * gap + (1 - SMOOTHING) * release_interval);
+            }
+            last_change = now;
+        }
+
+        long poll = MIN_INTERVAL;
+        if (release_interval > 0)
+        {
+            // If no release happened for longer than expected, the estimation was too optimistic:
+            // the next gap is at least as long as the current one.
+            long expected = Math.max(release_interval, now - last_change);
+            poll = Math.min(MAX_INTERVAL, Math.max(MIN_INTERVAL, expected / CHECKS_PER_RELEASE));
+        }
+        return new CheckSchedule(last_change, release_interval, now + poll);
+    }
+
+    /**
+     * @param now The current time.
+     * @return Whether the application should be checked during an update cycle starting now.
+     */
+    public boolean isDue(long now)
+    {
+        // Cycles are triggered by an inexact alarm: don't postpone a check by a whole cycle
+        // because it is due a little later.
+        return next_check <= now + MIN_INTERVAL / 2;
+    }
+
+    public long getLastChange() {
+        return last_change;
+    }
+
+    public long getReleaseInterval() {
+        return release_interval;
+    }
+
+    public long getNextCheck() {
+        return next_check;
+    }
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright (c) 2014
+ *
+ * ApkTrack is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ApkTrack is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ApkTrack.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fr.kwiatkowski.ApkTrack;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.util.Log;
+import com.commonsware.cwac.wakeful.WakefulIntentService;
+
+/**
+ * Starts a deferred update cycle when the device connects to a network or is plugged in, if it is
+ * now in the state required by the <code>CyclePolicy</code>, or if the cycle cannot be deferred any longer.
+ * This receiver is disabled in the manifest, and only enabled while a cycle is deferred, so that
+ * ApkTrack isn't woken up by every connectivity change. It also receives the alarm set for the deadline.
+ */
+public class CycleConditionsReceiver extends BroadcastReceiver
+{
+    static final String ACTION_DEADLINE = "fr.kwiatkowski.ApkTrack.CYCLE_DEADLINE";
+
+    @Override
+    public void onReceive(Context ctx, Intent intent)
+    {
+        if (!CyclePolicy.canRunNow(ctx)) {
+            return;
+        }
+        Log.v("ApkTrack", "Starting the deferred update cycle.");
+        CyclePolicy.set_receiver_enabled(ctx, false);
+        WakefulIntentService.sendWakefulWork(ctx, ScheduledVersionCheckService.class);
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright (c) 2014
+ *
+ * ApkTrack is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ApkTrack is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ApkTrack.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fr.kwiatkowski.ApkTrack;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.SharedPreferences;
+import android.content.pm.PackageManager;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.BatteryManager;
+import android.util.Log;
+
+/**
+ * Decides when the automatic update cycles may run.
+ * Depending on the mode chosen in the settings, cycles triggered by the alarm may be deferred until the
+ * device is on an unmetered network (and charging), so that the cellular radio isn't woken up for them.
+ * A cycle is never deferred for longer than <code>MAX_DEFERRAL</code> after the last complete one, which
+ * guarantees the freshness of the results.
+ * While a cycle is deferred, <code>CycleConditionsReceiver</code> is enabled to start it as soon as the
+ * conditions are met, and an alarm wakes it up at the deadline.
+ */
+public class CyclePolicy
+{
+    public enum Mode {
+        ANY_NETWORK,  // Cycles run whenever a network is available.
+        UNMETERED,  // Cycles wait for an unmetered network.
+        UNMETERED_CHARGING  // Cycles wait for an unmetered network and a charging device.
+    }
+
+    /**
+     * Cycles used to run on any network: deferring them is opt-in.
+     */
+    public static final Mode DEFAULT_MODE = Mode.ANY_NETWORK;
+
+    /**
+     * Maximum time between two complete cycles, in milliseconds. Past this delay, cycles run on any network.
+     */
+    public static final long MAX_DEFERRAL = 2 * CheckSchedule.CYCLE_PERIOD;
+
+    /**
+     * The preference file and key of the mode, shared with the settings screen.
+     */
+    static final String PREFERENCES = "fr.kwiatkowski.ApkTrack.CyclePolicy";
+    static final String KEY_MODE = "mode";
+    private static final String KEY_LAST_CYCLE = "last_cycle";
+
+    public static Mode getMode(Context ctx)
+    {
+        String mode = get_preferences(ctx).getString(KEY_MODE, DEFAULT_MODE.name());
+        try {
+            return Mode.valueOf(mode);
+        }
+        catch (IllegalArgumentException e) {
+            return DEFAULT_MODE;
+        }
+    }
+
+    public static void setMode(Context ctx, Mode mode) {
+        get_preferences(ctx).edit().putString(KEY_MODE, mode.name()).apply();
+    }
+
+    /**
+     * @param ctx The context used to query the system services.
+     * @return Whether an update cycle may start now, either because the device is in the required state
+     * or because the last complete cycle is too old to defer this one any longer.
+     */
+    public static boolean canRunNow(Context ctx)
+    {
+        NetworkInfo ni = get_connectivity(ctx).getActiveNetworkInfo();
+        if (ni == null || !ni.isConnected()) {
+            return false; // There is no point in starting a cycle which will fail.
+        }
+        if (conditionsMet(ctx)) {
+            return true;
+        }
+        long last_cycle = get_preferences(ctx).getLong(KEY_LAST_CYCLE, 0);
+        return System.currentTimeMillis() - last_cycle >= MAX_DEFERRAL;
+    }
+
+    /**
+     * @param ctx The context used to query the system services.
+     * @return Whether the device is in the state the policy waits for.
+     */
+    public static boolean conditionsMet(Context ctx)
+    {
+        Mode mode = getMode(ctx);
+        ConnectivityManager cm = get_connectivity(ctx);
+        NetworkInfo ni = cm.getActiveNetworkInfo();
+        if (ni == null || !ni.isConnected()) {
+            return false;
+        }
+        if (mode == Mode.ANY_NETWORK) {
+            return true;
+        }
+        if (cm.isActiveNetworkMetered()) {
+            return false;
+        }
+        return mode != Mode.UNMETERED_CHARGING || is_charging(ctx);
+    }
+
+    /**
+     * Postpones the current cycle until the conditions are met, or until the deadline if they never are.
+     */
+    public static void defer(Context ctx)
+    {
+        Log.v("ApkTrack", "Update cycle deferred until the device is in the required state (" + getMode(ctx) + ").");
+        set_receiver_enabled(ctx, true);
+
+        // Connectivity and power events may not happen before the deadline (i.e. the device stays on mobile data).
+        long deadline = get_preferences(ctx).getLong(KEY_LAST_CYCLE, 0) + MAX_DEFERRAL;
+        get_alarm_manager(ctx).setExact(AlarmManager.RTC_WAKEUP, deadline, get_deadline_intent(ctx));
+    }
+
+    /**
+     * Records the end of a cycle. There is no deferred cycle to start anymore.
+     */
+    public static void cycleCompleted(Context ctx)
+    {
+        get_preferences(ctx).edit().putLong(KEY_LAST_CYCLE, System.currentTimeMillis()).apply();
+        set_receiver_enabled(ctx, false);
+        get_alarm_manager(ctx).cancel(get_deadline_intent(ctx));
+    }
+
+    /**
+     * @return The broadcast sent to the <code>CycleConditionsReceiver</code> when a deferred cycle
+     * cannot wait any longer.
+     */
+    private static PendingIntent get_deadline_intent(Context ctx)
+    {
+        Intent i = new Intent(ctx, CycleConditionsReceiver.class);
+        i.setAction(CycleConditionsReceiver.ACTION_DEADLINE);
+        return PendingIntent.getBroadcast(ctx, 0, i, PendingIntent.FLAG_UPDATE_CURRENT);
+    }
+
+    private static AlarmManager get_alarm_manager(Context ctx) {
+        return (AlarmManager) ctx.getSystemService(Context.ALARM_SERVICE);
+    }
+
+    static void set_receiver_enabled(Context ctx, boolean enabled)
+    {
+        ctx.getPackageManager().setComponentEnabledSetting(
+                new ComponentName(ctx, CycleConditionsReceiver.class),
+                enabled ? PackageManager.COMPONENT_ENABLED_STATE_ENABLED : PackageManager.COMPONENT_ENABLED_STATE_DISABLED,
+                PackageManager.DONT_KILL_APP);
+    }
+
+    private static boolean is_charging(Context ctx)
+    {
+        // ACTION_BATTERY_CHANGED is sticky: the current state is returned without registering a receiver.
+        Intent battery = ctx.getApplicationContext().registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        return battery != null && battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+    }
+
+    private static ConnectivityManager get_connectivity(Context ctx) {
+        return (ConnectivityManager) ctx.getSystemService(Context.CONNECTIVITY_SERVICE);
+    }
+
+    private static SharedPreferences get_preferences(Context ctx) {
+        return ctx.getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE);
+    }
+}
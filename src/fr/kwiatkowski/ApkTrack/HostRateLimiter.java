@@ -0,0 +1,114 @@
+/*
+ * Copyright (c) 2014
+ *
+ * ApkTrack is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ApkTrack is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ApkTrack.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fr.kwiatkowski.ApkTrack;
+
+import java.util.HashMap;
+
+/**
+ * Rate limiter keeping one token bucket per host.
+ * Requests sent to different websites never wait for each other, but each website receives
+ * at most one request every <code>interval</code> milliseconds on average.
+ */
+public class HostRateLimiter
+{
+    private final long interval;
+    private final int capacity;
+    private final HashMap<String, TokenBucket> buckets = new HashMap<String, TokenBucket>();
+
+    /**
+     * @param interval The minimum average delay between two requests to the same host, in milliseconds.
+     * @param capacity The number of requests which may be sent to a host in a burst.
+     */
+    public HostRateLimiter(long interval, int capacity)
+    {
+        this.interval = interval;
+        this.capacity = capacity;
+    }
+
+    /**
+     * Blocks until a request may be sent to the given host.
+     * @param host The host which is about to be contacted.
+     * @throws InterruptedException If the thread is interrupted while waiting.
+     */
+    public void acquire(String host) throws InterruptedException
+    {
+        long wait = getBucket(host).reserve();
+        if (wait > 0) {
+            Thread.sleep(wait);
+        }
+    }
+
+    private synchronized TokenBucket getBucket(String host)
+    {
+        TokenBucket bucket = buckets.get(host);
+        if (bucket == null)
+        {
+            bucket = new TokenBucket(interval, capacity);
+            buckets.put(host, bucket);
+        }
+        return bucket;
+    }
+}
+
+/**
+ * A bucket which is refilled with one token every <code>interval</code> milliseconds, up to
+ * <code>capacity</code> tokens.
+ * Callers may reserve a token which is not available yet: the token count then becomes negative and
+ * the caller is told how long it has to wait. This keeps waiting threads in FIFO order.
+ */
+class TokenBucket
+{
+    private final long interval;
+    private final int capacity;
+    private double tokens;
+    private long last_refill;
+
+    TokenBucket(long interval, int capacity)
+    {
+        this.interval = interval;
+        this.capacity = capacity;
+        this.tokens = capacity;
+        this.last_refill = now();
+    }
+
+    /**
+     * Takes a token from the bucket.
+     * @return The number of milliseconds the caller has to wait before using its token.
+     */
+    synchronized long reserve()
+    {
+        long now = now();
+        tokens = Math.min(capacity, tokens + (double) (now - last_refill) / interval);
+        last_refill = now;
+
+        tokens -= 1;
+        if (tokens >= 0) {
+            return 0;
+        }
+        return (long) Math.ceil(-tokens * interval);
+    }
+
+    /**
+     * @return A monotonic time in milliseconds. System.nanoTime is used rather than SystemClock so that the
+     * limiter can run outside of Android: the time spent in deep sleep is not counted, but no request is
+     * sent then anyway.
+     */
+    private static long now() {
+        return System.nanoTime() / 1000000;
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright (c) 2014
+ *
+ * ApkTrack is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ApkTrack is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ApkTrack.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fr.kwiatkowski.ApkTrack;
+
+import android.util.Log;
+import android.webkit.WebSettings;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocketFactory;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Shared HTTP layer used to download the web pages.
+ * All the connections share the same user agent and SSL socket factory (and therefore the same TLS session
+ * cache), ask for compressed responses, and are returned to the platform's keep-alive pool once read,
+ * so that checking many applications against the same website doesn't cost a full handshake per request.
+ */
+public class HttpClient
+{
+    /**
+     * Read timeout for all the requests, in milliseconds.
+     */
+    private static final int TIMEOUT = 15000;
+
+    /**
+     * When a page is closed before its end, at most this many bytes are skipped to allow the connection
+     * to be reused. Larger leftovers are cheaper to drop along with the connection.
+     */
+    private static final int DRAIN_LIMIT = 16384;
+
+    /**
+     * Number of connections kept alive per website. The checks of the update service and the ones queued
+     * from the user interface share the check threads (see <code>AppExecutors</code>), which are sized after
+     * this constant: no more requests than this are sent to the same website at once.
+     */
+    public static final int MAX_CONNECTIONS_PER_HOST = 4;
+
+    /**
+     * Number of TLS sessions kept for resumption. We only ever talk to a handful of websites.
+     */
+    private static final int SSL_SESSION_CACHE_SIZE = 16;
+
+    private static volatile String user_agent = null;
+    private static SSLSocketFactory ssl_factory = null;
+
+    static
+    {
+        System.setProperty("http.keepAlive", "true");
+        System.setProperty("http.maxConnections", String.valueOf(MAX_CONNECTIONS_PER_HOST));
+
+        try
+        {
+            SSLContext ctx = SSLContext.getInstance("TLS");
+            ctx.init(null, null, null);
+            ctx.getClientSessionContext().setSessionCacheSize(SSL_SESSION_CACHE_SIZE);
+            ssl_factory = ctx.getSocketFactory();
+        }
+        catch (Exception e) {
+            Log.e("ApkTrack", "Could not create the shared SSL context! (" + e.getMessage() + ")");
+        }
+    }
+
+    /**
+     * Opens a GET request to the given URL. The connection is not established yet, so that
+     * callers may add their own headers.
+     * @param url The page to request.
+     * @return The configured connection.
+     * @throws IOException If the connection could not be opened.
+     */
+    public static HttpURLConnection open(String url) throws IOException
+    {
+        HttpURLConnection huc = (HttpURLConnection) new URL(url).openConnection();
+        if (huc instanceof HttpsURLConnection && ssl_factory != null) {
+            ((HttpsURLConnection) huc).setSSLSocketFactory(ssl_factory);
+        }
+        // AppBrain doesn't like non-browser user-agents. Use the device's default one.
+        huc.setRequestProperty("User-Agent", getUserAgent());
+        huc.setRequestProperty("Accept-Encoding", "gzip");
+        huc.setRequestMethod("GET");
+        huc.setReadTimeout(TIMEOUT);
+        return huc;
+    }
+
+    /**
+     * Returns the body of a response, decompressed if needed.
+     * Closing the returned stream hands the connection back to the keep-alive pool when possible.
+     * @param huc A connection opened with <code>open</code>.
+     * @return A stream containing the page.
+     * @throws IOException If the body could not be read (i.e. HTTP errors).
+     */
+    public static InputStream getBody(HttpURLConnection huc) throws IOException
+    {
+        InputStream raw = huc.getInputStream();
+        InputStream body = new ReusableStream(raw);
+        if ("gzip".equalsIgnoreCase(huc.getContentEncoding())) {
+            return new GZIPInputStream(body);
+        }
+        return body;
+    }
+
+    /**
+     * The default user agent is fetched once, since WebSettings has to build it every time.
+     */
+    private static String getUserAgent()
+    {
+        String ua = user_agent;
+        if (ua == null)
+        {
+            ua = WebSettings.getDefaultUserAgent(null);
+            user_agent = ua;
+        }
+        return ua;
+    }
+
+    /**
+     * Stream which skips what is left of a (small) response when closed, because the platform only
+     * recycles connections whose body has been read entirely.
+     */
+    private static class ReusableStream extends FilterInputStream
+    {
+        ReusableStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            try
+            {
+                byte[] buffer = new byte[2048];
+                int drained = 0;
+                int rsz;
+                while (drained < DRAIN_LIMIT && (rsz = in.read(buffer)) >= 0) {
+                    drained += rsz;
+                }
+            }
+            catch (IOException ignored) {}
+            finally {
+                super.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,219 @@
+/*
+ * Copyright (c) 2014
+ *
+ * ApkTrack is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ApkTrack is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ApkTrack.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fr.kwiatkowski.ApkTrack;
+
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.LruCache;
+import android.util.TypedValue;
+import android.widget.ImageView;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Memory cache for the icons displayed in the application list.
+ * Icons are decoded from the <code>IconStore</code> on a background thread the first time their row is
+ * displayed, at the size of the row rather than at their full resolution. The least recently used ones
+ * are dropped once the cache exceeds a fixed budget, and their memory is reused for the next icons as soon
+ * as no row displays them anymore.
+ */
+public class IconCache
+{
+    /**
+     * Size of the icons in the list, in density-independent pixels.
+     */
+    public static final int ICON_SIZE_DP = 48;
+
+    /**
+     * Number of icons kept in memory: a few screens worth of rows.
+     */
+    private static final int CACHED_ICONS = 64;
+
+    private IconStore store;
+    private Resources rsrc;
+    private int target_size;
+    private BitmapPool pool = new BitmapPool(CACHED_ICONS / 4);
+    private LruCache<String, Drawable> cache;
+    private Handler ui_handler = new Handler(Looper.getMainLooper());
+
+    /**
+     * Icons being decoded, and the views waiting for them. Only accessed from the UI thread.
+     */
+    private HashMap<String, List<ImageView>> pending = new HashMap<String, List<ImageView>>();
+
+    /**
+     * Number of views displaying each icon, and evicted icons which are still displayed. Those can only
+     * be reused once the last view displaying them has been recycled. Only accessed from the UI thread.
+     */
+    private HashMap<String, Integer> bound = new HashMap<String, Integer>();
+    private HashMap<String, Bitmap> evicted = new HashMap<String, Bitmap>();
+
+    public IconCache(IconStore store, Resources rsrc)
+    {
+        this.store = store;
+        this.rsrc = rsrc;
+        target_size = Math.round(TypedValue.applyDimension(TypedValue.COMPLEX_UNIT_DIP, ICON_SIZE_DP, rsrc.getDisplayMetrics()));
+
+        // The budget only depends on the size of the rows, not on the number of installed applications.
+        // Icons decoded at a slightly larger size than the target (see IconStore.get) fit as well.
+        int budget = CACHED_ICONS * 4 * (target_size * 2) * (target_size * 2);
+        cache = new LruCache<String, Drawable>(budget) {
+            @Override
+            protected int sizeOf(String hash, Drawable icon)
+            {
+                Bitmap bmp = get_bitmap(icon);
+                return bmp != null ? bmp.getAllocationByteCount() : 1;
+            }
+
+            @Override
+            protected void entryRemoved(boolean was_evicted, String hash, Drawable old_icon, Drawable new_icon) {
+                on_removed(hash, get_bitmap(old_icon));
+            }
+        };
+    }
+
+    /**
+     * Displays an icon in an image view. If the icon isn't in memory yet, the view is cleared and the
+     * icon is displayed once decoded, unless the view has been recycled for another icon in the meantime.
+     * Must be called from the UI thread.
+     * @param hash The hash of the icon to display.
+     * @param view The view to fill.
+     */
+    public void display(final String hash, final ImageView view)
+    {
+        unbind(view);
+        view.setTag(hash);
+        Integer count = bound.get(hash);
+        bound.put(hash, count == null ? 1 : count + 1);
+
+        Drawable icon = cache.get(hash);
+        if (icon != null)
+        {
+            view.setImageDrawable(icon);
+            return;
+        }
+        view.setImageDrawable(null);
+
+        // If the icon is already being decoded, the view will be filled when it's done.
+        List<ImageView> waiting = pending.get(hash);
+        if (waiting != null)
+        {
+            waiting.add(view);
+            return;
+        }
+        waiting = new ArrayList<ImageView>();
+        waiting.add(view);
+        pending.put(hash, waiting);
+
+        AppExecutors.cpu().execute(new Runnable() {
+            @Override
+            public void run()
+            {
+                final Drawable decoded = store.get(hash, rsrc, target_size, pool);
+                ui_handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        on_decoded(hash, decoded);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Clears an image view which isn't used to display a cached icon anymore. Must be called from the UI
+     * thread instead of modifying the view directly, so that the icon it displayed can be reused.
+     * @param view The view to clear.
+     */
+    public void clear(ImageView view)
+    {
+        unbind(view);
+        view.setTag(null);
+        view.setImageDrawable(null);
+    }
+
+    /**
+     * Forgets which icon a view displayed. If it was the last view displaying an evicted icon, the memory
+     * of that icon can be reused.
+     */
+    private void unbind(ImageView view)
+    {
+        Object tag = view.getTag();
+        if (!(tag instanceof String)) {
+            return;
+        }
+        String hash = (String) tag;
+        Integer count = bound.get(hash);
+        if (count == null) {
+            return;
+        }
+        if (count > 1)
+        {
+            bound.put(hash, count - 1);
+            return;
+        }
+        bound.remove(hash);
+        pool.put(evicted.remove(hash));
+    }
+
+    /**
+     * Called when an icon leaves the cache. Its bitmap is reused right away if it isn't displayed.
+     */
+    private void on_removed(String hash, Bitmap bmp)
+    {
+        if (bmp == null) {
+            return;
+        }
+        if (bound.containsKey(hash)) {
+            evicted.put(hash, bmp);
+        }
+        else {
+            pool.put(bmp);
+        }
+    }
+
+    private static Bitmap get_bitmap(Drawable icon)
+    {
+        if (icon instanceof BitmapDrawable) {
+            return ((BitmapDrawable) icon).getBitmap();
+        }
+        return null;
+    }
+
+    private void on_decoded(String hash, Drawable icon)
+    {
+        List<ImageView> waiting = pending.remove(hash);
+        if (icon == null || waiting == null) {
+            return;
+        }
+        cache.put(hash, icon);
+        for (ImageView view : waiting)
+        {
+            // Ignore views which have been recycled for another row in the meantime.
+            if (hash.equals(view.getTag())) {
+                view.setImageDrawable(icon);
+            }
+        }
+    }
+}
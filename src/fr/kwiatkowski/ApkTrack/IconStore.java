@@ -0,0 +1,277 @@
+/*
+ * Copyright (c) 2014
+ *
+ * ApkTrack is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ApkTrack is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ApkTrack.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fr.kwiatkowski.ApkTrack;
+
+import android.content.Context;
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Content-addressed storage for application icons.
+ * Each icon is saved once as a PNG file named after the hash of its contents; the database only keeps
+ * that hash. Identical icons are stored only once, and saving an icon which is already known costs
+ * no disk write and no PNG encoding.
+ */
+public class IconStore
+{
+    private Context ctx;
+    private File dir = null;
+
+    /**
+     * The directory is only resolved when the store is first used, so that a store may be created
+     * before the context is fully initialized (i.e. from a Service's constructor).
+     */
+    public IconStore(Context ctx) {
+        this.ctx = ctx;
+    }
+
+    /**
+     * Saves an icon in the store.
+     * @param icon The icon to save.
+     * @return The hash referencing the icon, or null if it could not be saved.
+     */
+    public String put(Drawable icon)
+    {
+        if (!(icon instanceof BitmapDrawable)) {
+            return null;
+        }
+        Bitmap bmp = ((BitmapDrawable) icon).getBitmap();
+
+        // The raw pixels are hashed rather than the PNG: the icon is only encoded if it isn't in the store yet.
+        ByteBuffer pixels = ByteBuffer.allocate(bmp.getByteCount());
+        bmp.copyPixelsToBuffer(pixels);
+        String hash = hash(pixels.array(), bmp.getWidth() + "x" + bmp.getHeight() + ":" + bmp.getConfig());
+        if (hash == null) {
+            return null;
+        }
+        synchronized (this)
+        {
+            if (getFile(hash).exists()) {
+                return hash;
+            }
+        }
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        bmp.compress(Bitmap.CompressFormat.PNG, 100, baos);
+        return write(hash, baos.toByteArray());
+    }
+
+    /**
+     * Saves an already encoded icon in the store. Such icons are referenced by the hash of their PNG data,
+     * which differs from the hash of the same icon saved as a drawable: they are only shared with
+     * other encoded icons.
+     * @param png The PNG data of the icon.
+     * @return The hash referencing the icon, or null if it could not be saved.
+     */
+    public String put(byte[] png)
+    {
+        String hash = hash(png, null);
+        if (hash == null) {
+            return null;
+        }
+        return write(hash, png);
+    }
+
+    /**
+     * Writes an icon to the store, unless a file with the same hash exists already.
+     * @return The hash, or null if the icon could not be saved.
+     */
+    private synchronized String write(String hash, byte[] png)
+    {
+        File f = getFile(hash);
+        if (f.exists()) {
+            return hash;
+        }
+
+        // Write to a temporary file first, so that a crash never leaves a truncated icon behind.
+        File tmp = new File(get_dir(), hash + ".tmp");
+        FileOutputStream fos = null;
+        try
+        {
+            fos = new FileOutputStream(tmp);
+            fos.write(png);
+            fos.close();
+            fos = null;
+            if (!tmp.renameTo(f)) {
+                throw new IOException("Could not rename " + tmp);
+            }
+            return hash;
+        }
+        catch (IOException e)
+        {
+            Log.e("ApkTrack", "Could not save icon " + hash + "! (" + e.getMessage() + ")");
+            tmp.delete();
+            return null;
+        }
+        finally
+        {
+            if (fos != null) {
+                try {
+                    fos.close();
+                } catch (IOException ignored) {}
+            }
+        }
+    }
+
+    /**
+     * Loads an icon from the store.
+     * @param hash The hash of the icon.
+     * @param rsrc The resources used to create the drawable.
+     * @return The icon, or null if it isn't in the store.
+     */
+    public Drawable get(String hash, Resources rsrc) {
+        return get(hash, rsrc, 0, null);
+    }
+
+    /**
+     * Loads an icon from the store, scaled down to the size at which it will be displayed.
+     * The dimensions of the icon are read first, so that it is decoded directly at a reduced resolution
+     * (the smallest one which is still at least <code>target_size</code> pixels wide and high).
+     * @param hash The hash of the icon.
+     * @param rsrc The resources used to create the drawable.
+     * @param target_size The size at which the icon is displayed, in pixels. 0 to decode at full size.
+     * @param pool Bitmaps whose memory may be reused for the icon. May be null.
+     * @return The icon, or null if it isn't in the store.
+     */
+    public Drawable get(String hash, Resources rsrc, int target_size, BitmapPool pool)
+    {
+        if (hash == null || rsrc == null) {
+            return null;
+        }
+        File f = getFile(hash);
+        if (!f.exists()) {
+            return null;
+        }
+
+        BitmapFactory.Options opts = new BitmapFactory.Options();
+        opts.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(f.getPath(), opts);
+        if (opts.outWidth <= 0 || opts.outHeight <= 0) {
+            return null;
+        }
+
+        int sample = 1;
+        if (target_size > 0)
+        {
+            while (opts.outWidth / (sample * 2) >= target_size && opts.outHeight / (sample * 2) >= target_size) {
+                sample *= 2;
+            }
+        }
+        opts.inJustDecodeBounds = false;
+        opts.inSampleSize = sample;
+        opts.inMutable = true; // Required for the bitmap to be reused later.
+
+        Bitmap bmp = null;
+        if (pool != null)
+        {
+            int width = (opts.outWidth + sample - 1) / sample;
+            int height = (opts.outHeight + sample - 1) / sample;
+            opts.inBitmap = pool.get(width * height * 4);
+            if (opts.inBitmap != null)
+            {
+                try {
+                    bmp = BitmapFactory.decodeFile(f.getPath(), opts);
+                }
+                catch (IllegalArgumentException e) {
+                    bmp = null; // The bitmap could not be reused after all.
+                }
+                opts.inBitmap = null;
+            }
+        }
+        if (bmp == null) {
+            bmp = BitmapFactory.decodeFile(f.getPath(), opts);
+        }
+        if (bmp == null) {
+            return null;
+        }
+        return new BitmapDrawable(rsrc, bmp);
+    }
+
+    /**
+     * Deletes an icon from the store.
+     * Callers are responsible for checking that no application references it anymore.
+     * @param hash The hash of the icon to delete.
+     */
+    public synchronized void remove(String hash)
+    {
+        if (hash != null) {
+            getFile(hash).delete();
+        }
+    }
+
+    private File getFile(String hash) {
+        return new File(get_dir(), hash + ".png");
+    }
+
+    private synchronized File get_dir()
+    {
+        if (dir == null)
+        {
+            dir = new File(ctx.getFilesDir(), "icons");
+            if (!dir.isDirectory() && !dir.mkdirs()) {
+                Log.e("ApkTrack", "Could not create the icon directory!");
+            }
+        }
+        return dir;
+    }
+
+    /**
+     * @param data The data to hash.
+     * @param header Information hashed before the data (i.e. the dimensions of an image). May be null.
+     * @return The SHA-1 of the data, in hexadecimal.
+     */
+    private static String hash(byte[] data, String header)
+    {
+        try
+        {
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            if (header != null) {
+                md.update(header.getBytes("UTF-8"));
+            }
+            byte[] digest = md.digest(data);
+            StringBuilder sb = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                sb.append(String.format("%02x", b));
+            }
+            return sb.toString();
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            Log.e("ApkTrack", "SHA-1 is not available!");
+            return null;
+        }
+        catch (UnsupportedEncodingException e)
+        {
+            Log.e("ApkTrack", "UTF-8 is not available!");
+            return null;
+        }
+    }
+}
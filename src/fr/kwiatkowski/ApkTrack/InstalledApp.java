@@ -17,23 +17,60 @@
 
 package fr.kwiatkowski.ApkTrack;
 
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
 import android.graphics.drawable.Drawable;
 
+import java.text.CollationKey;
+import java.text.Collator;
 import java.util.Comparator;
 
 public class InstalledApp implements Comparable<InstalledApp>
 {
+    // Flags identifying the persisted fields which were modified since the application was last saved.
+    public static final int FIELD_NAME = 1;
+    public static final int FIELD_VERSION = 1 << 1;
+    public static final int FIELD_LATEST_VERSION = 1 << 2;
+    public static final int FIELD_LAST_CHECK = 1 << 3;
+    public static final int FIELD_LAST_CHECK_ERROR = 1 << 4;
+    public static final int FIELD_SYSTEM_APP = 1 << 5;
+    public static final int ALL_FIELDS = (1 << 6) - 1;
+
+    // Update status of the application, by order of appearance in the sorted list.
+    static final int STATUS_UNCHECKED = 0;
+    static final int STATUS_OUTDATED = 1;
+    static final int STATUS_UP_TO_DATE = 2;
+    static final int STATUS_ERROR = 3;
+
+    /**
+     * Compares the application names according to the rules of the user's language.
+     * Collators are not thread-safe: synchronize on it.
+     */
+    private static final Collator collator = Collator.getInstance();
+
     private String package_name;
     private String display_name;
     private String version;
     private String latest_version = null;
     private Drawable icon;
+    private String icon_hash = null;
     private boolean last_ckeck_error = false;
     private boolean system_app;
     private String last_check_date = null;
 
     // Volatile fields (won't be persisted)
     private boolean currently_checking = false;
+    private int dirty_fields = ALL_FIELDS; // New objects have never been saved.
+    private volatile int revision = 0; // Incremented whenever a persisted field changes.
+
+    // Parsed versions, computed when first needed and reset when the version strings change.
+    private volatile Version parsed_version = null;
+    private volatile Version parsed_latest_version = null;
+
+    // Sort keys, computed when first needed. The status is reset when the fields it depends on change.
+    private volatile int status = -1;
+    private volatile CollationKey name_key = null;
 
     public InstalledApp(String package_name, String version, String display_name, boolean system_app, Drawable icon)
     {
@@ -44,6 +81,63 @@ public class InstalledApp implements Comparable<InstalledApp>
         this.system_app = system_app;
     }
 
+    /**
+     * Creates an InstalledApp from the information provided by the PackageManager.
+     * @param pi The package to describe.
+     * @param pacman The PackageManager used to load the label and icon of the application.
+     * @return A new object representing the package.
+     */
+    public static InstalledApp fromPackageInfo(PackageInfo pi, PackageManager pacman) {
+        return fromPackageInfo(pi, pacman, true);
+    }
+
+    /**
+     * Creates an InstalledApp from the information provided by the PackageManager.
+     * @param pi The package to describe.
+     * @param pacman The PackageManager used to load the label and icon of the application.
+     * @param load_icon Whether the icon should be loaded. Icons are large: they should only be loaded for
+     *                  applications which are about to be saved (see <code>loadIcon</code>).
+     * @return A new object representing the package.
+     */
+    public static InstalledApp fromPackageInfo(PackageInfo pi, PackageManager pacman, boolean load_icon)
+    {
+        ApplicationInfo ai;
+        try {
+            ai = pacman.getApplicationInfo(pi.packageName, 0);
+        }
+        catch (final PackageManager.NameNotFoundException e) {
+            ai = null;
+        }
+        String applicationName = (String) (ai != null ? pacman.getApplicationLabel(ai) : null);
+        return new InstalledApp(pi.packageName,
+                pi.versionName,
+                applicationName,
+                isSystemPackage(pi),
+                ai != null && load_icon ? ai.loadIcon(pacman) : null);
+    }
+
+    /**
+     * Loads the icon of the application from the PackageManager, if it isn't loaded already.
+     * @param pacman The PackageManager of the device.
+     */
+    public void loadIcon(PackageManager pacman)
+    {
+        if (icon != null) {
+            return;
+        }
+        try {
+            icon = pacman.getApplicationInfo(package_name, 0).loadIcon(pacman);
+        }
+        catch (PackageManager.NameNotFoundException e) {
+            icon = null;
+        }
+    }
+
+    private static boolean isSystemPackage(PackageInfo pkgInfo)
+    {
+        return !(pkgInfo == null || pkgInfo.applicationInfo == null) && ((pkgInfo.applicationInfo.flags & ApplicationInfo.FLAG_SYSTEM) != 0);
+    }
+
     public String getPackageName() {
         return package_name;
     }
@@ -56,8 +150,14 @@ public class InstalledApp implements Comparable<InstalledApp>
         return version;
     }
 
-    public void setVersion(String version) {
+    public void setVersion(String version)
+    {
+        if (!equal(this.version, version)) {
+            markDirty(FIELD_VERSION);
+        }
         this.version = version;
+        parsed_version = null;
+        status = -1;
     }
 
     public Drawable getIcon() {
@@ -68,19 +168,75 @@ public class InstalledApp implements Comparable<InstalledApp>
         this.icon = icon;
     }
 
-    public void setLatestVersion(String latest_version) {
+    /**
+     * @return The hash referencing this application's icon in the <code>IconStore</code>, or null if the
+     * icon was never saved.
+     */
+    public String getIconHash() {
+        return icon_hash;
+    }
+
+    public void setIconHash(String icon_hash) {
+        this.icon_hash = icon_hash;
+    }
+
+    public void setLatestVersion(String latest_version)
+    {
+        if (!equal(this.latest_version, latest_version)) {
+            markDirty(FIELD_LATEST_VERSION);
+        }
         this.latest_version = latest_version;
+        parsed_latest_version = null;
+        status = -1;
     }
 
     public String getLatestVersion() {
         return latest_version;
     }
 
+    /**
+     * @return The installed version, parsed. Null if it is unknown.
+     */
+    public Version getParsedVersion()
+    {
+        Version v = parsed_version;
+        if (v == null && version != null) {
+            parsed_version = v = Version.parse(version);
+        }
+        return v;
+    }
+
+    /**
+     * @return The latest version found online, parsed. Null if the application was never checked.
+     */
+    public Version getParsedLatestVersion()
+    {
+        Version v = parsed_latest_version;
+        if (v == null && latest_version != null) {
+            parsed_latest_version = v = Version.parse(latest_version);
+        }
+        return v;
+    }
+
+    /**
+     * @return Whether the last check found a version more recent than the installed one. Older versions,
+     * returned by websites which are lagging behind, are not considered as updates.
+     */
+    public boolean isUpdateAvailable()
+    {
+        Version latest = getParsedLatestVersion();
+        return latest != null && !last_ckeck_error && latest.isNewerThan(getParsedVersion());
+    }
+
     public String getLastCheckDate() {
         return last_check_date;
     }
 
-    public void setLastCheckDate(String last_check_date) {
+    public void setLastCheckDate(String last_check_date)
+    {
+        if (!equal(this.last_check_date, last_check_date)) {
+            markDirty(FIELD_LAST_CHECK);
+        }
         this.last_check_date = last_check_date;
     }
 
@@ -88,8 +244,13 @@ public class InstalledApp implements Comparable<InstalledApp>
         return last_ckeck_error;
     }
 
-    public void setLastCheckFatalError(boolean last_ckeck_error) {
+    public void setLastCheckFatalError(boolean last_ckeck_error)
+    {
+        if (this.last_ckeck_error != last_ckeck_error) {
+            markDirty(FIELD_LAST_CHECK_ERROR);
+        }
         this.last_ckeck_error = last_ckeck_error;
+        status = -1;
     }
 
     public boolean isCurrentlyChecking() {
@@ -104,43 +265,94 @@ public class InstalledApp implements Comparable<InstalledApp>
         return system_app;
     }
 
-    public int updateCompareTo(InstalledApp a)
+    /**
+     * @return A combination of the FIELD_* flags, describing which persisted fields were modified
+     * since the application was last saved.
+     */
+    public synchronized int getDirtyFields() {
+        return dirty_fields;
+    }
+
+    /**
+     * Marks fields as saved.
+     * @param fields The FIELD_* flags of the fields which were written to the database.
+     */
+    public synchronized void clearDirtyFields(int fields) {
+        dirty_fields &= ~fields;
+    }
+
+    private synchronized void markDirty(int field)
     {
-        // One of the applications was never checked:
-        if (getLatestVersion() == null && a.getLatestVersion() != null) {
-            return -1;
-        }
-        else if (getLatestVersion() != null && a.getLatestVersion() == null) {
-            return 1;
-        }
-        else if (getLatestVersion() == null) { // Both are unchecked
-            return compareTo(a);
-        }
+        dirty_fields |= field;
+        ++revision;
+    }
 
-        // One of the applications has an error
-        if (isLastCheckFatalError() && !a.isLastCheckFatalError()) {
-            return 1;
-        }
-        else if (!isLastCheckFatalError() && a.isLastCheckFatalError()) {
-            return -1;
-        }
-        else if (isLastCheckFatalError()) {
-            return compareTo(a);
-        }
+    /**
+     * @return A number which changes every time one of the persisted fields is modified. Used to know
+     * when the information derived from the application has to be computed again.
+     */
+    public int getRevision() {
+        return revision;
+    }
 
-        // Both applications have been checked and no errors
-        if (getVersion().equals(getLatestVersion()) && !a.getVersion().equals(a.getLatestVersion())) {
-            return 1;
+    private static boolean equal(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    /**
+     * @return The update status of the application (one of the STATUS_* constants). Applications which
+     * were never checked come first, then the ones which can be updated, the up to date ones and finally
+     * the ones whose last check failed.
+     */
+    int getStatus()
+    {
+        int s = status;
+        if (s < 0)
+        {
+            // An application whose check failed before any version was found is still unchecked.
+            if (latest_version == null) {
+                s = STATUS_UNCHECKED;
+            }
+            else if (last_ckeck_error) {
+                s = STATUS_ERROR;
+            }
+            else if (isUpdateAvailable()) {
+                s = STATUS_OUTDATED;
+            }
+            else {
+                s = STATUS_UP_TO_DATE;
+            }
+            status = s;
         }
-        else if (!getVersion().equals(getLatestVersion()) && a.getVersion().equals(a.getLatestVersion())) {
-            return -1;
+        return s;
+    }
+
+    /**
+     * @return The key used to sort the application by name. The name never changes, so the key is only
+     * computed once.
+     */
+    CollationKey getNameKey()
+    {
+        CollationKey key = name_key;
+        if (key == null)
+        {
+            synchronized (collator) {
+                key = collator.getCollationKey(display_name == null ? "" : display_name);
+            }
+            name_key = key;
         }
-        else return compareTo(a);
+        return key;
+    }
+
+    public int updateCompareTo(InstalledApp a)
+    {
+        int diff = getStatus() - a.getStatus();
+        return diff != 0 ? diff : compareTo(a);
     }
 
     @Override
     public int compareTo(InstalledApp installedApp) {
-        return display_name.compareTo(installedApp.display_name);
+        return getNameKey().compareTo(installedApp.getNameKey());
     }
 
     public int systemUpdateCompareTo(InstalledApp a)
@@ -208,8 +420,8 @@ class UpdatedComparator implements Comparator<InstalledApp>
 {
     /**
      * This comparator sorts InstalledApps in the following way:
-     * - Never checked applications or checks with fatal errors are put at the bottom.
-     * - Updated applications are put at the top.
+     * - Never checked applications are put at the top, followed by applications which can be updated.
+     * - Up to date applications come next, and checks with fatal errors are put at the bottom.
      * - Applications in the same group are sorted alphabetically.
      * @param a1 The first app to compare
      * @param a2 The second app to compare
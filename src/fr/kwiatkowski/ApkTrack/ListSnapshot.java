@@ -0,0 +1,228 @@
+/*
+ * Copyright (c) 2014
+ *
+ * ApkTrack is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ApkTrack is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ApkTrack.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fr.kwiatkowski.ApkTrack;
+
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A compact binary copy of the application list, as it was last displayed.
+ * It is read when the activity starts, so that the list can be shown before the database is even opened.
+ * Only what the rows display is saved (no icons but their hash), in the order of the list.
+ *
+ * Format: magic, format version, sort order, number of applications, then for each application its
+ * package name, name, version, latest version, last check date, icon hash (UTF-8 strings prefixed by their
+ * length, -1 for null) and a byte of flags.
+ */
+public class ListSnapshot
+{
+    private static final int MAGIC = 0x41544c53; // "ATLS"
+    private static final int FORMAT_VERSION = 1;
+
+    /**
+     * Smallest possible size of an application in the file: six empty strings and the flags.
+     */
+    private static final int MIN_APP_SIZE = 6 * 4 + 1;
+
+    private static final int FLAG_SYSTEM_APP = 1;
+    private static final int FLAG_LAST_CHECK_ERROR = 1 << 1;
+
+    private List<InstalledApp> apps;
+    private String sort_order;
+
+    private ListSnapshot(List<InstalledApp> apps, String sort_order)
+    {
+        this.apps = apps;
+        this.sort_order = sort_order;
+    }
+
+    /**
+     * @return The applications, in the order in which they were displayed.
+     */
+    public List<InstalledApp> getApps() {
+        return apps;
+    }
+
+    /**
+     * @return An identifier of the order the list was sorted in (see <code>write</code>).
+     */
+    public String getSortOrder() {
+        return sort_order;
+    }
+
+    /**
+     * Saves the list. The file is replaced atomically, so that a crash never leaves a truncated snapshot.
+     * @param f The snapshot file.
+     * @param apps The applications, in the order in which they are displayed.
+     * @param sort_order An identifier of the order of the list.
+     */
+    public static void write(File f, List<InstalledApp> apps, String sort_order)
+    {
+        File tmp = new File(f.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try
+        {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            write_string(out, sort_order);
+            out.writeInt(apps.size());
+            for (InstalledApp app : apps)
+            {
+                write_string(out, app.getPackageName());
+                write_string(out, app.getDisplayName());
+                write_string(out, app.getVersion());
+                write_string(out, app.getLatestVersion());
+                write_string(out, app.getLastCheckDate());
+                write_string(out, app.getIconHash());
+                out.writeByte((app.isSystemApp() ? FLAG_SYSTEM_APP : 0) |
+                              (app.isLastCheckFatalError() ? FLAG_LAST_CHECK_ERROR : 0));
+            }
+            out.close();
+            out = null;
+            if (!tmp.renameTo(f)) {
+                throw new IOException("Could not rename " + tmp);
+            }
+        }
+        catch (IOException e)
+        {
+            Log.e("ApkTrack", "Could not save the list snapshot! (" + e.getMessage() + ")");
+            tmp.delete();
+        }
+        finally
+        {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException ignored) {}
+            }
+        }
+    }
+
+    /**
+     * Reads a snapshot. The file is memory-mapped rather than read through a stream.
+     * @param f The snapshot file.
+     * @return The snapshot, or null if there is none or it is unreadable.
+     */
+    public static ListSnapshot read(File f)
+    {
+        if (!f.isFile()) {
+            return null;
+        }
+        FileInputStream fis = null;
+        try
+        {
+            fis = new FileInputStream(f);
+            FileChannel channel = fis.getChannel();
+            MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buf.getInt() != MAGIC || buf.getInt() != FORMAT_VERSION) {
+                return null;
+            }
+            String sort_order = read_string(buf);
+            int count = buf.getInt();
+            // A corrupt count must not make us allocate a huge list: the database will be read instead.
+            if (count < 0 || count > buf.remaining() / MIN_APP_SIZE)
+            {
+                Log.e("ApkTrack", "The list snapshot is corrupt!");
+                return null;
+            }
+            ArrayList<InstalledApp> apps = new ArrayList<InstalledApp>(count);
+            for (int i = 0 ; i < count ; ++i)
+            {
+                String package_name = read_string(buf);
+                String name = read_string(buf);
+                String version = read_string(buf);
+                String latest_version = read_string(buf);
+                String last_check = read_string(buf);
+                String icon_hash = read_string(buf);
+                int flags = buf.get();
+                if (package_name == null)
+                {
+                    Log.e("ApkTrack", "The list snapshot is corrupt!");
+                    return null;
+                }
+
+                InstalledApp app = new InstalledApp(package_name, version, name, (flags & FLAG_SYSTEM_APP) != 0, null);
+                app.setLatestVersion(latest_version);
+                app.setLastCheckDate(last_check);
+                app.setLastCheckFatalError((flags & FLAG_LAST_CHECK_ERROR) != 0);
+                app.setIconHash(icon_hash);
+                app.clearDirtyFields(InstalledApp.ALL_FIELDS); // Identical to what is in the database.
+                apps.add(app);
+            }
+            return new ListSnapshot(apps, sort_order);
+        }
+        catch (IOException e)
+        {
+            Log.e("ApkTrack", "Could not read the list snapshot! (" + e.getMessage() + ")");
+            return null;
+        }
+        catch (BufferUnderflowException e)
+        {
+            Log.e("ApkTrack", "The list snapshot is truncated!");
+            return null;
+        }
+        finally
+        {
+            if (fis != null) {
+                try {
+                    fis.close();
+                } catch (IOException ignored) {}
+            }
+        }
+    }
+
+    private static void write_string(DataOutputStream out, String s) throws IOException
+    {
+        if (s == null)
+        {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = s.getBytes("UTF-8");
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String read_string(ByteBuffer buf) throws UnsupportedEncodingException
+    {
+        int length = buf.getInt();
+        if (length < 0) {
+            return null;
+        }
+        if (length > buf.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        byte[] bytes = new byte[length];
+        buf.get(bytes);
+        return new String(bytes, "UTF-8");
+    }
+}
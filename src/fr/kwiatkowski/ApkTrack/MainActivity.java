@@ -18,11 +18,12 @@
 package fr.kwiatkowski.ApkTrack;
 
 import android.app.ListActivity;
-import android.content.pm.ApplicationInfo;
+import android.content.Intent;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.content.res.Resources;
 import android.os.Bundle;
+import android.text.format.DateUtils;
 import android.util.Log;
 import android.view.Menu;
 import android.view.MenuInflater;
@@ -33,18 +34,29 @@ import android.widget.ListView;
 import android.widget.Toast;
 import com.commonsware.cwac.wakeful.WakefulIntentService;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.Executor;
 
-public class MainActivity extends ListActivity
+public class MainActivity extends ListActivity implements CheckQueue.Listener
 {
+    private static final String SNAPSHOT_FILE = "list.snapshot";
+
     private AppAdapter adapter;
     private PackageManager pacman;
-    private AppPersistence persistence;
+    private volatile AppPersistence persistence; // Null until the database has been read.
     private List<InstalledApp> installed_apps;
     private Comparator<InstalledApp> comparator = new UpdatedSystemComparator();
+    private File snapshot_file;
+    private Executor snapshot_writer = AppExecutors.newSerialIoExecutor();
+    private CheckQueue check_queue = null; // Created once the database has been read.
+    private boolean queue_active = false; // State of the queue when the menu was last prepared.
+    private boolean queue_paused = false;
 
     @Override
     public void onCreate(Bundle savedInstanceState)
@@ -52,50 +64,128 @@ public class MainActivity extends ListActivity
         super.onCreate(savedInstanceState);
         setContentView(R.layout.main);
 
+        // Display the list as it was last time right away. The database is read in the background.
+        snapshot_file = new File(getCacheDir(), SNAPSHOT_FILE);
+        final ListSnapshot snapshot = ListSnapshot.read(snapshot_file);
+        if (snapshot != null)
+        {
+            installed_apps = snapshot.getApps();
+            if (!comparator.getClass().getName().equals(snapshot.getSortOrder())) {
+                Collections.sort(installed_apps, comparator);
+            }
+            show_list();
+        }
+
         // New thread to load the data without hanging the UI
-        new Thread(new Runnable() {
+        AppExecutors.io().execute(new Runnable() {
             @Override
             public void run() {
-                persistence = new AppPersistence(getApplicationContext(), getResources());
-                installed_apps = getInstalledAps();
-                adapter = new AppAdapter(MainActivity.this, installed_apps);
+                persistence = new AppPersistence(getApplicationContext());
+                final List<InstalledApp> stored_apps = getInstalledAps();
 
                 runOnUiThread(new Runnable() {
                     @Override
-                    public void run() {
-                        MainActivity.this.setListAdapter(adapter);
-                    }
-                });
-
-                // Hide the spinner now
-                final LinearLayout ll = (LinearLayout) findViewById(R.id.spinner);
-                ll.post(new Runnable() {
-                    @Override
-                    public void run() {
-                        ll.setVisibility(View.GONE);
+                    public void run()
+                    {
+                        if (snapshot == null)
+                        {
+                            installed_apps = stored_apps;
+                            show_list();
+                        }
+                        else
+                        {
+                            // Reconcile: the database is authoritative, the snapshot may be outdated.
+                            installed_apps.clear();
+                            installed_apps.addAll(stored_apps);
+                            Collections.sort(installed_apps, comparator); // The order may have changed meanwhile.
+                            adapter.clearRowModels();
+                            if (!adapter.isShowSystem()) {
+                                adapter.hideSystemApps(); // Recount the user applications.
+                            }
+                            adapter.notifyDataSetChanged();
+                        }
+                        save_snapshot();
                     }
                 });
             }
-        }).start();
+        });
 
         WakefulIntentService.scheduleAlarms(new PollReciever(), this);
     }
 
+    /**
+     * Creates the adapter for <code>installed_apps</code> and hides the spinner. Called on the UI thread.
+     */
+    private void show_list()
+    {
+        IconCache icons = new IconCache(new IconStore(getApplicationContext()), getResources());
+        adapter = new AppAdapter(this, installed_apps, icons);
+        setListAdapter(adapter);
+        findViewById(R.id.spinner).setVisibility(View.GONE);
+    }
+
+    @Override
+    protected void onStop()
+    {
+        super.onStop();
+        // Version checks update the applications without changing the list: save their results now.
+        if (persistence != null && installed_apps != null) {
+            save_snapshot();
+        }
+    }
+
+    @Override
+    protected void onDestroy()
+    {
+        super.onDestroy();
+        // The checks notify this activity's adapter: they are not carried over to a new instance.
+        if (check_queue != null && check_queue.isActive()) {
+            check_queue.cancel();
+        }
+    }
+
+    /**
+     * Saves the list as it is displayed, so that it can be shown immediately next time.
+     * Must be called on the UI thread, which owns the list. The file is written in the background.
+     */
+    private void save_snapshot()
+    {
+        final List<InstalledApp> apps = new ArrayList<InstalledApp>(installed_apps);
+        final String sort_order = comparator.getClass().getName();
+        snapshot_writer.execute(new Runnable() {
+            @Override
+            public void run() {
+                ListSnapshot.write(snapshot_file, apps, sort_order);
+            }
+        });
+    }
+
     @Override
     public void onWindowFocusChanged(boolean hasFocus)
     {
-        if (!hasFocus || installed_apps == null || adapter == null) {
+        if (!hasFocus || installed_apps == null || adapter == null || persistence == null) {
             return;
         }
 
-        // Nothing to do if the service hasn't detected any updates.
-        if (!ScheduledVersionCheckService.data_modified) {
+        // Packages installed, updated or removed in the background are applied one by one.
+        if (!ScheduledVersionCheckService.data_modified)
+        {
+            if (PackageChangeReceiver.data_modified)
+            {
+                PackageChangeReceiver.data_modified = false;
+                AppExecutors.io().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        replayPackageChanges();
+                    }
+                });
+            }
             return;
         }
 
         // When focus is gained, refresh the application list. It may have been changed by the
         // background service.
-        new Thread(new Runnable()
+        AppExecutors.io().execute(new Runnable()
         {
             @Override
             public void run()
@@ -109,9 +199,18 @@ public class MainActivity extends ListActivity
                     }
                 });
 
-                installed_apps.clear();
-                installed_apps.addAll(getInstalledAps());
-                notifyAdapterInUIThread();
+                final List<InstalledApp> stored_apps = getInstalledAps();
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run()
+                    {
+                        installed_apps.clear();
+                        installed_apps.addAll(stored_apps);
+                        adapter.clearRowModels();
+                        adapter.notifyDataSetChanged();
+                        save_snapshot();
+                    }
+                });
 
                 // Hide spinner
                 ll.post(new Runnable() {
@@ -121,17 +220,72 @@ public class MainActivity extends ListActivity
                     }
                 });
             }
-        }).start();
+        });
         ScheduledVersionCheckService.data_modified = false;
     }
 
+    /**
+     * Applies the package changes recorded by the <code>PackageChangeReceiver</code> to the displayed list.
+     * The database is already up to date: only the affected applications are read again.
+     */
+    private void replayPackageChanges()
+    {
+        List<PackageChange> changes = persistence.getPackageChanges();
+        if (changes.isEmpty()) {
+            return;
+        }
+
+        // Only the last change for each package matters. Removed packages are mapped to null.
+        final HashMap<String, InstalledApp> changed = new HashMap<String, InstalledApp>();
+        for (PackageChange change : changes)
+        {
+            if (change.getChange() == PackageChange.REMOVED) {
+                changed.put(change.getPackageName(), null);
+            }
+            else {
+                changed.put(change.getPackageName(), persistence.getStoredApp(change.getPackageName()));
+            }
+        }
+        persistence.clearPackageChanges(changes.get(changes.size() - 1).getId());
+
+        runOnUiThread(new Runnable() {
+            @Override
+            public void run()
+            {
+                Iterator<InstalledApp> it = installed_apps.iterator();
+                while (it.hasNext())
+                {
+                    if (changed.containsKey(it.next().getPackageName())) {
+                        it.remove();
+                    }
+                }
+                adapter.clearRowModels();
+                // The list is still sorted: put the new applications at their place.
+                for (InstalledApp app : changed.values())
+                {
+                    if (app != null) {
+                        AppListDiff.insertSorted(installed_apps, app, comparator);
+                    }
+                }
+                if (!adapter.isShowSystem()) {
+                    adapter.hideSystemApps(); // Recount the user applications.
+                }
+                adapter.notifyDataSetChanged();
+                save_snapshot();
+            }
+        });
+    }
+
     /**
      * Retreives the list of applications installed on the device.
      * If no data is present in the database, the list is generated.
+     * Package changes journaled before this call are reflected in the returned list.
      */
     private List<InstalledApp> getInstalledAps()
     {
+        long journal_head = persistence.getPackageJournalHead();
         List<InstalledApp> applist = persistence.getStoredApps();
+        persistence.clearPackageChanges(journal_head);
         if (applist.size() == 0) {
             applist = refreshInstalledApps(true);
         }
@@ -147,7 +301,8 @@ public class MainActivity extends ListActivity
      * this device. The data is retrieved from the PackageManager.
      *
      * @param overwrite_database If true, the data already present in ApkTrack's SQLite database will be
-     *                           overwritten by the new data.
+     *                           overwritten by the new data. Otherwise, the database is left untouched
+     *                           and the icons are not loaded.
      */
     private List<InstalledApp> refreshInstalledApps(boolean overwrite_database)
     {
@@ -156,47 +311,12 @@ public class MainActivity extends ListActivity
         if (pacman != null)
         {
             List<PackageInfo> list = pacman.getInstalledPackages(0);
-            for (PackageInfo pi : list)
-            {
-                ApplicationInfo ai;
-                try {
-                    ai = pacman.getApplicationInfo(pi.packageName, 0);
-                }
-                catch (final PackageManager.NameNotFoundException e) {
-                    ai = null;
-                }
-                String applicationName = (String) (ai != null ? pacman.getApplicationLabel(ai) : null);
-                applist.add(new InstalledApp(pi.packageName,
-                        pi.versionName,
-                        applicationName,
-                        isSystemPackage(pi),
-                        ai != null ? ai.loadIcon(pacman) : null));
+            for (PackageInfo pi : list) {
+                applist.add(InstalledApp.fromPackageInfo(pi, pacman, overwrite_database));
             }
 
-            if (overwrite_database)
-            {
-                for (InstalledApp ia : applist) {
-                    persistence.insertApp(ia);
-                }
-            }
-            else
-            {
-                for (InstalledApp ia : applist)
-                {
-                    InstalledApp previous = persistence.getStoredApp(ia.getPackageName());
-
-                    // No version available in the past, but there is one now
-                    if (previous != null && previous.getVersion() == null && ia.getVersion() != null) {
-                        persistence.insertApp(ia); // Store the new version
-                    }
-                    // The application has been updated
-                    else if (previous != null &&
-                             previous.getVersion() != null &&
-                             !previous.getVersion().equals(ia.getVersion()))
-                    {
-                        persistence.insertApp(ia);
-                    }
-                }
+            if (overwrite_database) {
+                persistence.insertApps(applist);
             }
         }
         else {
@@ -213,30 +333,97 @@ public class MainActivity extends ListActivity
         return super.onCreateOptionsMenu(menu);
     }
 
+    /**
+     * The queue controls are only shown while checks are waiting or running.
+     */
+    @Override
+    public boolean onPrepareOptionsMenu(Menu menu)
+    {
+        boolean active = check_queue != null && check_queue.isActive();
+        MenuItem pause = menu.findItem(R.id.pause_checks);
+        pause.setVisible(active);
+        pause.setTitle(active && check_queue.isPaused() ? R.string.resume_checks : R.string.pause_checks);
+        menu.findItem(R.id.cancel_checks).setVisible(active);
+        return super.onPrepareOptionsMenu(menu);
+    }
+
+    /**
+     * Displays the progress of the checks in the action bar.
+     */
+    @Override
+    public void onQueueChanged(CheckQueue queue)
+    {
+        if (queue.isActive() != queue_active || queue.isPaused() != queue_paused)
+        {
+            queue_active = queue.isActive();
+            queue_paused = queue.isPaused();
+            invalidateOptionsMenu();
+        }
+
+        String progress = null;
+        if (queue.isActive())
+        {
+            Resources res = getResources();
+            long remaining = queue.getRemainingTime();
+            if (queue.isPaused()) {
+                progress = String.format(res.getString(R.string.check_progress_paused), queue.getCompleted(), queue.getTotal());
+            }
+            else if (remaining >= 0) {
+                progress = String.format(res.getString(R.string.check_progress_eta), queue.getCompleted(), queue.getTotal(),
+                                         DateUtils.formatElapsedTime(remaining));
+            }
+            else {
+                progress = String.format(res.getString(R.string.check_progress), queue.getCompleted(), queue.getTotal());
+            }
+        }
+        getActionBar().setSubtitle(progress);
+    }
+
     /**
      * This function handles user input through the action bar.
      * Three buttons exist as of yet:
      * - Get the latest version for all installed apps
      * - Regenerate the list of installed applications
      * - Hide / show system applications
+     * - Open the settings (version sources)
      */
     @Override
     public boolean onOptionsItemSelected(final MenuItem item)
     {
+        if (item.getItemId() == R.id.settings)
+        {
+            startActivity(new Intent(this, SettingsActivity.class));
+            return true;
+        }
+        if (persistence == null) {
+            return true; // The list displayed comes from the snapshot: wait for the database.
+        }
+
         switch (item.getItemId())
         {
             case R.id.check_all_apps:
-                for (InstalledApp ia : installed_apps) {
-                    performVersionCheck(ia);
+                get_check_queue().enqueueAll(installed_apps);
+                return true;
+
+            case R.id.pause_checks:
+                if (check_queue.isPaused()) {
+                    check_queue.resume();
+                }
+                else {
+                    check_queue.pause();
                 }
                 return true;
 
+            case R.id.cancel_checks:
+                check_queue.cancel();
+                return true;
+
             case R.id.refresh_apps:
                 item.setEnabled(false);
                 item.getIcon().setAlpha(130);
 
                 // Do this in a separate thread, or the UI hangs.
-                new Thread(new Runnable()
+                AppExecutors.io().execute(new Runnable()
                 {
                     @Override
                     public void run()
@@ -251,7 +438,7 @@ public class MainActivity extends ListActivity
                             }
                         });
                     }
-                }).start();
+                });
                 return true;
 
             case R.id.show_system:
@@ -320,97 +507,58 @@ public class MainActivity extends ListActivity
 
     private void performVersionCheck(InstalledApp app)
     {
-        if (app != null && !app.isCurrentlyChecking())
-        {
-            // The loader icon will be displayed from here on
-            app.setCurrentlyChecking(true);
-            notifyAdapterInUIThread();
-            new VersionGetTask(app, adapter, persistence, getResources()).execute();
+        if (app != null && persistence != null) {
+            get_check_queue().enqueue(app, true); // Checked before the applications already waiting.
         }
     }
 
-    private void onRefreshAppsClicked()
+    private CheckQueue get_check_queue()
     {
-        final List<InstalledApp> new_list = refreshInstalledApps(false);
-
-        // Remove the ones we already have. We wouldn't want duplicates
-        final ArrayList<InstalledApp> uninstalled_apps = new ArrayList<InstalledApp>(installed_apps);
-        uninstalled_apps.removeAll(new_list);
-
-        // Check for updated apps
-        int updated_count = 0;
-        for (InstalledApp ai : new_list)
-        {
-            if (installed_apps.contains(ai) &&
-                    !ai.getVersion().equals(installed_apps.get(installed_apps.indexOf(ai)).getVersion()))
-            {
-                updated_count += 1;
-                // The following lines may look strange, but it works because of the equality operation
-                // override for InstalledApp: objects are matched on their package name alone.
-                installed_apps.remove(ai); // Removes the app with the same package name as ai
-                installed_apps.add(ai);    // Adds the new app
-                Collections.sort(installed_apps, comparator);
-            }
-        }
-        if (updated_count > 0) {
-            notifyAdapterInUIThread();
+        if (check_queue == null) {
+            check_queue = new CheckQueue(adapter, persistence, getResources(), this);
         }
+        return check_queue;
+    }
 
-        // Keep the new applications
-        new_list.removeAll(installed_apps);
+    private void onRefreshAppsClicked()
+    {
+        // Compare the installed applications with the ones in the database (a single query).
+        final AppListDiff diff = new AppListDiff(persistence.getStoredApps(), refreshInstalledApps(false));
+
+        // Save the newly detected and updated applications, and forget the uninstalled ones.
+        ArrayList<InstalledApp> to_save = new ArrayList<InstalledApp>(diff.getAdded());
+        to_save.addAll(diff.getUpdated());
+        for (InstalledApp app : to_save) {
+            app.loadIcon(pacman); // Only the icons which may have changed are loaded.
+        }
+        persistence.insertApps(to_save);
+        persistence.removeFromDatabase(diff.getRemoved());
 
-        final int final_updated_count = updated_count;
         runOnUiThread(new Runnable() {
             @Override
-            public void run() {
+            public void run()
+            {
+                if (!diff.isEmpty())
+                {
+                    // The list is modified on the UI thread, since the adapter reads it from there.
+                    diff.applySorted(installed_apps, comparator);
+                    adapter.clearRowModels();
+                    if (!adapter.isShowSystem()) {
+                        adapter.hideSystemApps(); // Recount the user applications.
+                    }
+                    adapter.notifyDataSetChanged();
+                    save_snapshot();
+                }
+
                 Resources res = getResources();
                 Toast t = Toast.makeText(getApplicationContext(),
-                        String.format(res.getString(R.string.new_apps_detected), new_list.size()) +
-                                String.format(res.getString(R.string.apps_updated), final_updated_count) +
-                                String.format(res.getString(R.string.apps_deleted), uninstalled_apps.size()),
+                        String.format(res.getString(R.string.new_apps_detected), diff.getAdded().size()) +
+                                String.format(res.getString(R.string.apps_updated), diff.getUpdated().size()) +
+                                String.format(res.getString(R.string.apps_deleted), diff.getRemoved().size()),
                         Toast.LENGTH_SHORT);
                 t.show();
             }
         });
-
-        // Remove uninstalled applications from the list
-        if (uninstalled_apps.size() > 0)
-        {
-            installed_apps.removeAll(uninstalled_apps);
-            for (InstalledApp app : uninstalled_apps) {
-                persistence.removeFromDatabase(app);
-            }
-            notifyAdapterInUIThread();
-        }
-
-        // Add new applications
-        if (new_list.size() > 0)
-        {
-            for (InstalledApp app : new_list)
-            {
-                // Save the newly detected applications in the database.
-                persistence.insertApp(app);
-                installed_apps.add(app);
-            }
-
-            Collections.sort(installed_apps, comparator);
-            notifyAdapterInUIThread();
-        }
-    }
-
-    private boolean isSystemPackage(PackageInfo pkgInfo)
-    {
-        return !(pkgInfo == null || pkgInfo.applicationInfo == null) && ((pkgInfo.applicationInfo.flags & ApplicationInfo.FLAG_SYSTEM) != 0);
-    }
-
-    private void notifyAdapterInUIThread()
-    {
-        runOnUiThread(new Runnable() {
-            @Override
-            public void run() {
-                adapter.notifyDataSetChanged();
-            }
-        });
     }
 }
 
@@ -0,0 +1,51 @@
+/*
+ * Copyright (c) 2014
+ *
+ * ApkTrack is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ApkTrack is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ApkTrack.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fr.kwiatkowski.ApkTrack;
+
+/**
+ * A change made to the installed packages, as recorded in the journal.
+ */
+class PackageChange
+{
+    public static final int ADDED = 0;
+    public static final int UPDATED = 1;
+    public static final int REMOVED = 2;
+
+    private long id;
+    private String package_name;
+    private int change;
+
+    PackageChange(long id, String package_name, int change)
+    {
+        this.id = id;
+        this.package_name = package_name;
+        this.change = change;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public String getPackageName() {
+        return package_name;
+    }
+
+    public int getChange() {
+        return change;
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright (c) 2014
+ *
+ * ApkTrack is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ApkTrack is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ApkTrack.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fr.kwiatkowski.ApkTrack;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.net.Uri;
+import android.util.Log;
+
+/**
+ * Keeps the database up to date when packages are installed, updated or removed, so that the
+ * whole package list doesn't have to be scanned again.
+ * Every change is also written to a journal which the activity replays when it gains the focus.
+ */
+public class PackageChangeReceiver extends BroadcastReceiver
+{
+    // This variable is checked by the Activity when it gains the focus to see if it should replay
+    // the package journal.
+    static volatile boolean data_modified = false;
+
+    @Override
+    public void onReceive(final Context ctx, final Intent intent)
+    {
+        Uri data = intent.getData();
+        if (data == null) {
+            return;
+        }
+        final String package_name = data.getSchemeSpecificPart();
+        final String action = intent.getAction();
+        final boolean replacing = intent.getBooleanExtra(Intent.EXTRA_REPLACING, false);
+
+        // An update is broadcast as REMOVED + ADDED + REPLACED. Only handle the last one.
+        if (replacing && !Intent.ACTION_PACKAGE_REPLACED.equals(action)) {
+            return;
+        }
+
+        // Reading the package and writing to the database should not be done on the main thread.
+        final PendingResult result = goAsync();
+        AppExecutors.io().execute(new Runnable() {
+            @Override
+            public void run()
+            {
+                try {
+                    handle_change(ctx.getApplicationContext(), action, package_name);
+                }
+                finally {
+                    result.finish();
+                }
+            }
+        });
+    }
+
+    private void handle_change(Context ctx, String action, String package_name)
+    {
+        AppPersistence persistence = new AppPersistence(ctx);
+        try
+        {
+            if (Intent.ACTION_PACKAGE_REMOVED.equals(action))
+            {
+                InstalledApp app = persistence.getStoredApp(package_name);
+                if (app != null)
+                {
+                    Log.v("ApkTrack", package_name + " was uninstalled.");
+                    persistence.removeFromDatabase(app);
+                    persistence.journalPackageChange(package_name, PackageChange.REMOVED);
+                    data_modified = true;
+                }
+                return;
+            }
+
+            PackageInfo pi;
+            PackageManager pacman = ctx.getPackageManager();
+            try {
+                pi = pacman.getPackageInfo(package_name, 0);
+            }
+            catch (PackageManager.NameNotFoundException e)
+            {
+                Log.v("ApkTrack", package_name + " disappeared before it could be read.");
+                return;
+            }
+
+            // Like a manual refresh, an update replaces the stored information with the new package.
+            persistence.insertApp(InstalledApp.fromPackageInfo(pi, pacman));
+            if (Intent.ACTION_PACKAGE_REPLACED.equals(action))
+            {
+                Log.v("ApkTrack", package_name + " was updated to " + pi.versionName + ".");
+                persistence.journalPackageChange(package_name, PackageChange.UPDATED);
+            }
+            else
+            {
+                Log.v("ApkTrack", package_name + " was installed.");
+                persistence.journalPackageChange(package_name, PackageChange.ADDED);
+            }
+            data_modified = true;
+        }
+        finally {
+            persistence.close();
+        }
+    }
+}
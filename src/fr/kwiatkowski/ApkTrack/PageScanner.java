@@ -0,0 +1,127 @@
+/*
+ * Copyright (c) 2014
+ *
+ * ApkTrack is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ApkTrack is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ApkTrack.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fr.kwiatkowski.ApkTrack;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Looks for a set of patterns in a web page while it is being downloaded.
+ * The page is never stored as a whole: only a rolling window of the last characters read is kept,
+ * and the scan stops as soon as one of the patterns is found so the rest of the page doesn't
+ * have to be downloaded.
+ * Patterns made of literal strings around a single field are matched with an <code>AnchoredExtractor</code>;
+ * the regex engine is only used for the other ones.
+ */
+public class PageScanner
+{
+    /**
+     * Number of characters read from the stream at once.
+     */
+    private static final int CHUNK_SIZE = 4096;
+
+    /**
+     * Number of characters kept from the previous window, so that matches spanning two chunks are found.
+     * Must be larger than the longest text the patterns are expected to match.
+     */
+    private static final int OVERLAP = 1024;
+
+    private Matcher[] matchers;
+    private AnchoredExtractor[] extractors;
+    private String match = null;
+
+    /**
+     * @param patterns The patterns to look for, by order of priority.
+     */
+    public PageScanner(Pattern... patterns)
+    {
+        matchers = new Matcher[patterns.length];
+        extractors = new AnchoredExtractor[patterns.length];
+        for (int i = 0 ; i < patterns.length ; ++i)
+        {
+            extractors[i] = AnchoredExtractor.compile(patterns[i]);
+            if (extractors[i] == null) {
+                matchers[i] = patterns[i].matcher("");
+            }
+        }
+    }
+
+    /**
+     * Reads the stream until one of the patterns is found or the end of the page is reached.
+     * The stream is not closed by this method.
+     * @param is The stream containing the web page.
+     * @return The index of the pattern which was found, or -1 if none of them matched.
+     * @throws IOException If the stream could not be read.
+     */
+    public int scan(InputStream is) throws IOException
+    {
+        match = null;
+        Reader in = new InputStreamReader(is, "UTF-8");
+        char[] buffer = new char[CHUNK_SIZE];
+        StringBuilder window = new StringBuilder(CHUNK_SIZE + OVERLAP);
+        int rsz;
+        while ((rsz = in.read(buffer, 0, buffer.length)) >= 0)
+        {
+            window.append(buffer, 0, rsz);
+            int found = find(window);
+            if (found >= 0) {
+                return found;
+            }
+            if (window.length() > OVERLAP) {
+                window.delete(0, window.length() - OVERLAP);
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return The first capturing group of the last match (or the whole match if the pattern has
+     * no groups), or null if nothing was found.
+     */
+    public String getMatch() {
+        return match;
+    }
+
+    private int find(CharSequence window)
+    {
+        for (int i = 0 ; i < matchers.length ; ++i)
+        {
+            if (extractors[i] != null)
+            {
+                if (extractors[i].find(window))
+                {
+                    match = extractors[i].getMatch();
+                    return i;
+                }
+                continue;
+            }
+
+            Matcher m = matchers[i].reset(window);
+            if (m.find())
+            {
+                match = m.groupCount() > 0 ? m.group(1) : m.group();
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -25,7 +25,7 @@ import com.commonsware.cwac.wakeful.WakefulIntentService;
 
 public class PollReciever implements WakefulIntentService.AlarmListener
 {
-    public static final long DELAY = AlarmManager.INTERVAL_DAY;
+    public static final long DELAY = CheckSchedule.CYCLE_PERIOD;
 
     public void scheduleAlarms(AlarmManager mgr, PendingIntent pi, Context ctxt)
     {
@@ -37,6 +37,6 @@ public class PollReciever implements WakefulIntentService.AlarmListener
     }
 
     public long getMaxAge() {
-        return(AlarmManager.INTERVAL_DAY * 2);
+        return(DELAY * 2);
     }
 }
\ No newline at end of file
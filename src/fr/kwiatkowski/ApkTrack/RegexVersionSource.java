@@ -0,0 +1,74 @@
+/*
+ * Copyright (c) 2014
+ *
+ * ApkTrack is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ApkTrack is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ApkTrack.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fr.kwiatkowski.ApkTrack;
+
+import java.util.regex.Pattern;
+
+/**
+ * A source defined by a URL template and regular expressions.
+ */
+class RegexVersionSource implements VersionSource
+{
+    private String name;
+    private String url_template;
+    private Pattern version_pattern;
+    private Pattern unavailable_pattern;
+
+    /**
+     * @param name The name of the source.
+     * @param url_template The URL of the application pages, where %1$s stands for the package name.
+     * @param version_pattern The pattern extracting the version number.
+     * @param unavailable_pattern The pattern marking missing applications. May be null.
+     */
+    RegexVersionSource(String name, String url_template, Pattern version_pattern, Pattern unavailable_pattern)
+    {
+        this.name = name;
+        this.url_template = url_template;
+        this.version_pattern = version_pattern;
+        this.unavailable_pattern = unavailable_pattern;
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public String getUrl(String package_name) {
+        return String.format(url_template, package_name);
+    }
+
+    public String getUrlTemplate() {
+        return url_template;
+    }
+
+    @Override
+    public Pattern getVersionPattern() {
+        return version_pattern;
+    }
+
+    @Override
+    public Pattern getUnavailablePattern() {
+        return unavailable_pattern;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
@@ -24,80 +24,119 @@ import android.content.res.Resources;
 import android.util.Log;
 import com.commonsware.cwac.wakeful.WakefulIntentService;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 
 public class ScheduledVersionCheckService extends WakefulIntentService
 {
-    // Do not flood update servers. 1 request every 2 seconds max.
+    // Do not flood update servers. 1 request every 2 seconds max (per website) on average.
     public static final int REQUEST_DELAY = 2000;
+    // A few requests may be sent to each website at once, so that the cycle ends (and the radio goes
+    // back to sleep) sooner.
+    public static final int REQUEST_BURST = 4;
     private AppPersistence persistence;
 
     // This variable is checked by the Activity when it gains the focus to see if it should reload
     // its application list from the database.
-    static boolean data_modified = false;
+    static volatile boolean data_modified = false;
 
-    public ScheduledVersionCheckService()
-    {
+    public ScheduledVersionCheckService() {
         super("ScheduledVersionCheckService");
-        persistence = new AppPersistence(this, null);
+    }
+
+    @Override
+    public void onCreate()
+    {
+        super.onCreate();
+        // The service's context is only attached at this point: it cannot be used from the constructor.
+        persistence = new AppPersistence(this);
     }
 
     @Override
     protected void doWakefulWork(Intent intent)
     {
+        if (!CyclePolicy.canRunNow(this))
+        {
+            CyclePolicy.defer(this);
+            return;
+        }
+
+        // Resume the previous cycle if it was interrupted (i.e. the process was killed and the intent redelivered).
+        final long cycle = persistence.resumeOrStartCycle(CheckSchedule.CYCLE_PERIOD / 1000);
+        HashSet<String> processed = persistence.getCycleProgress(cycle);
+
         List<InstalledApp> app_list = persistence.getStoredApps();
-        Log.v("ApkTrack", "New update cycle started! (" + app_list.size() + " apps to check)");
-        try
+        HashMap<String, CheckSchedule> schedules = persistence.getCheckSchedules();
+        long now = System.currentTimeMillis() / 1000L;
+        List<InstalledApp> to_check = new ArrayList<InstalledApp>();
+        for (InstalledApp app : app_list)
         {
-            for (InstalledApp app : app_list)
-            {
-                Log.v("ApkTrack", "Service checking updates for " + app.getPackageName());
+            // Never fetch the same application twice during a cycle.
+            if (processed.contains(app.getPackageName())) {
+                continue;
+            }
+            // If we already know that the application is outdated, don't check for more updates.
+            if (app.isUpdateAvailable()) {
+                continue;
+            }
+            // Do not try again if there was an error.
+            if (app.isLastCheckFatalError()) {
+                continue;
+            }
+            // Applications which are rarely updated are not checked on every cycle.
+            CheckSchedule schedule = schedules.get(app.getPackageName());
+            if (schedule != null && !schedule.isDue(now)) {
+                continue;
+            }
+            to_check.add(app);
+        }
+        Log.v("ApkTrack", (processed.isEmpty() ? "New update cycle started! (" : "Update cycle resumed! (") +
+                to_check.size() + " of " + app_list.size() + " apps to check)");
 
-                // If we already know that the application is outdated, don't check for more updates.
-                if (app.getLatestVersion() != null && !app.getVersion().equals(app.getLatestVersion())) {
-                    continue;
-                }
-                // Do not try again if there was an error.
-                if (app.isLastCheckFatalError()) {
-                    continue;
+        UpdateCheckEngine engine = new UpdateCheckEngine(persistence,
+                getResources(),
+                new HostRateLimiter(REQUEST_DELAY, REQUEST_BURST),
+                UpdateCheckEngine.MAX_PARALLEL_CHECKS);
+        try
+        {
+            engine.run(to_check, new UpdateCheckEngine.Listener() {
+                @Override
+                public void onCheckStarted(InstalledApp app) {
+                    // Recorded before the request: a check interrupted midway is not retried during this cycle.
+                    persistence.recordCycleProgress(cycle, app.getPackageName());
                 }
 
-                VersionGetResult res = new VersionGetTask(app, null, persistence, getResources()).sync_execute();
-                Log.v("ApkTrack", "Play Store check returned: " + res.getStatus());
-                if (res.getStatus() == VersionGetResult.Status.ERROR)
-                {
-                    Log.v("ApkTrack", "Trying AppBrain...");
-                    app.setCurrentlyChecking(true);
-                    res = new VersionGetTask(app, null, persistence, getResources(), VersionGetTask.PageUsed.APPBRAIN).sync_execute();
-                    Log.v("ApkTrack", "AppBrain check returned: " + res.getStatus());
-                    // If both Play Stored and AppBrain failed, try Xposed modules.
-                    if (res.getStatus() == VersionGetResult.Status.ERROR)
-                    {
-                        Log.v("ApkTrack", "Appbrain check failed. Mabye the package is an Xposed module...");
-                        app.setCurrentlyChecking(true);
-                        new VersionGetTask(app, null, persistence, getResources(), VersionGetTask.PageUsed.XPOSED_STABLE).execute();
-                    }
+                @Override
+                public void onAppUpdated(InstalledApp app) {
+                    notifyUpdate(app);
                 }
+            });
+        }
+        catch (InterruptedException ignored) {
+            return;
+        }
+        persistence.finishCycle(cycle);
+        CyclePolicy.cycleCompleted(this);
+    }
 
-                if (res.getStatus() == VersionGetResult.Status.UPDATED)
-                {
-                    Resources r = getResources();
-                    // Show a notification for updated apps
-                    Notification.Builder b = new Notification.Builder(this);
-                    b.setContentTitle(String.format(r.getString(R.string.app_updated_notification), app.getDisplayName()))
-                     .setContentText(String.format(r.getString(R.string.app_version_available), app.getLatestVersion()))
-                     .setTicker(String.format(r.getString(R.string.app_can_be_updated), app.getDisplayName()))
-                     .setSmallIcon(R.drawable.ic_menu_refresh);
-
-                    NotificationManager mgr= (NotificationManager)getSystemService(NOTIFICATION_SERVICE);
-                    mgr.notify(app.getDisplayName().hashCode(), b.build()); // One notification per available update.
-                    data_modified = true;
-                    // TODO: Send an intent to the activity in case it has the focus.
-                }
+    /**
+     * Shows a notification for an application which can be updated.
+     * @param app The updated application.
+     */
+    private void notifyUpdate(InstalledApp app)
+    {
+        Resources r = getResources();
+        Notification.Builder b = new Notification.Builder(this);
+        b.setContentTitle(String.format(r.getString(R.string.app_updated_notification), app.getDisplayName()))
+         .setContentText(String.format(r.getString(R.string.app_version_available), app.getLatestVersion()))
+         .setTicker(String.format(r.getString(R.string.app_can_be_updated), app.getDisplayName()))
+         .setSmallIcon(R.drawable.ic_menu_refresh);
 
-                Thread.sleep(REQUEST_DELAY);
-            }
-        }
-        catch (InterruptedException ignored) {}
+        NotificationManager mgr= (NotificationManager)getSystemService(NOTIFICATION_SERVICE);
+        mgr.notify(app.getDisplayName().hashCode(), b.build()); // One notification per available update.
+        data_modified = true;
+        // TODO: Send an intent to the activity in case it has the focus.
     }
 }
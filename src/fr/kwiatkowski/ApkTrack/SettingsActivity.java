@@ -0,0 +1,217 @@
+/*
+ * Copyright (c) 2014
+ *
+ * ApkTrack is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ApkTrack is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ApkTrack.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fr.kwiatkowski.ApkTrack;
+
+import android.app.Activity;
+import android.app.AlertDialog;
+import android.content.DialogInterface;
+import android.os.Bundle;
+import android.preference.Preference;
+import android.preference.PreferenceCategory;
+import android.preference.PreferenceFragment;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.widget.EditText;
+import android.widget.Toast;
+
+import java.util.List;
+
+/**
+ * The settings of the application: when the automatic update cycles may run (see <code>CyclePolicy</code>),
+ * and the websites registered by the user in addition to the built-in ones (see <code>VersionSources</code>).
+ */
+public class SettingsActivity extends Activity
+{
+    @Override
+    public void onCreate(Bundle savedInstanceState)
+    {
+        super.onCreate(savedInstanceState);
+        getFragmentManager().beginTransaction().replace(android.R.id.content, new SettingsFragment()).commit();
+    }
+
+    public static class SettingsFragment extends PreferenceFragment
+    {
+        private static final String KEY_SOURCES = "sources";
+        private static final String KEY_ADD_SOURCE = "add_source";
+
+        private AppPersistence persistence;
+        private PreferenceCategory sources;
+        private Preference add_source;
+
+        @Override
+        public void onCreate(Bundle savedInstanceState)
+        {
+            super.onCreate(savedInstanceState);
+            // The mode is read by CyclePolicy from its own preferences.
+            getPreferenceManager().setSharedPreferencesName(CyclePolicy.PREFERENCES);
+            addPreferencesFromResource(R.xml.settings);
+            persistence = new AppPersistence(getActivity().getApplicationContext());
+
+            sources = (PreferenceCategory) findPreference(KEY_SOURCES);
+            add_source = findPreference(KEY_ADD_SOURCE);
+            add_source.setOnPreferenceClickListener(new Preference.OnPreferenceClickListener() {
+                @Override
+                public boolean onPreferenceClick(Preference p)
+                {
+                    show_add_dialog();
+                    return true;
+                }
+            });
+            load_sources();
+        }
+
+        @Override
+        public void onDestroy()
+        {
+            super.onDestroy();
+            persistence.close();
+        }
+
+        /**
+         * Reads the user-defined sources from the database and lists them after the "add" entry.
+         */
+        private void load_sources()
+        {
+            AppExecutors.io().execute(new Runnable() {
+                @Override
+                public void run()
+                {
+                    final List<String[]> defs = persistence.getUserSources();
+                    final Activity activity = getActivity();
+                    if (activity == null) {
+                        return;
+                    }
+                    activity.runOnUiThread(new Runnable() {
+                        @Override
+                        public void run()
+                        {
+                            if (!isAdded()) {
+                                return;
+                            }
+                            sources.removeAll();
+                            sources.addPreference(add_source);
+                            for (String[] def : defs) {
+                                sources.addPreference(make_source_preference(def[0], def[1]));
+                            }
+                        }
+                    });
+                }
+            });
+        }
+
+        private Preference make_source_preference(final String name, String url_template)
+        {
+            Preference p = new Preference(getActivity());
+            p.setPersistent(false);
+            p.setTitle(name);
+            p.setSummary(url_template);
+            p.setOnPreferenceClickListener(new Preference.OnPreferenceClickListener() {
+                @Override
+                public boolean onPreferenceClick(Preference p)
+                {
+                    show_delete_dialog(name);
+                    return true;
+                }
+            });
+            return p;
+        }
+
+        private void show_add_dialog()
+        {
+            View v = LayoutInflater.from(getActivity()).inflate(R.layout.source_dialog, null, false);
+            final EditText name = (EditText) v.findViewById(R.id.source_name);
+            final EditText url = (EditText) v.findViewById(R.id.source_url);
+            final EditText regex = (EditText) v.findViewById(R.id.source_regex);
+
+            final AlertDialog dialog = new AlertDialog.Builder(getActivity())
+                    .setTitle(R.string.add_source)
+                    .setView(v)
+                    .setPositiveButton(android.R.string.ok, null)
+                    .setNegativeButton(android.R.string.cancel, null)
+                    .create();
+            dialog.show();
+            // Set after show() so that an invalid source doesn't close the dialog and lose what was typed.
+            dialog.getButton(DialogInterface.BUTTON_POSITIVE).setOnClickListener(new View.OnClickListener() {
+                @Override
+                public void onClick(View view) {
+                    add_source(dialog, name.getText().toString().trim(), url.getText().toString().trim(),
+                               regex.getText().toString());
+                }
+            });
+        }
+
+        private void add_source(final AlertDialog dialog, final String name, final String url, final String regex)
+        {
+            AppExecutors.io().execute(new Runnable() {
+                @Override
+                public void run()
+                {
+                    String error = null;
+                    try {
+                        VersionSources.register(persistence, name, url, regex);
+                    }
+                    catch (IllegalArgumentException e) {
+                        error = e.getMessage();
+                    }
+
+                    final String message = error;
+                    final Activity activity = getActivity();
+                    if (activity == null) {
+                        return;
+                    }
+                    activity.runOnUiThread(new Runnable() {
+                        @Override
+                        public void run()
+                        {
+                            if (message != null)
+                            {
+                                Toast.makeText(activity, String.format(activity.getString(R.string.invalid_source), message),
+                                        Toast.LENGTH_LONG).show();
+                                return;
+                            }
+                            dialog.dismiss();
+                            load_sources();
+                        }
+                    });
+                }
+            });
+        }
+
+        private void show_delete_dialog(final String name)
+        {
+            new AlertDialog.Builder(getActivity())
+                    .setMessage(String.format(getActivity().getString(R.string.delete_source), name))
+                    .setPositiveButton(android.R.string.ok, new DialogInterface.OnClickListener() {
+                        @Override
+                        public void onClick(DialogInterface d, int which)
+                        {
+                            AppExecutors.io().execute(new Runnable() {
+                                @Override
+                                public void run()
+                                {
+                                    VersionSources.unregister(persistence, name);
+                                    load_sources();
+                                }
+                            });
+                        }
+                    })
+                    .setNegativeButton(android.R.string.cancel, null)
+                    .show();
+        }
+    }
+}
@@ -0,0 +1,235 @@
+/*
+ * Copyright (c) 2014
+ *
+ * ApkTrack is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ApkTrack is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ApkTrack.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fr.kwiatkowski.ApkTrack;
+
+import android.content.res.Resources;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Looks for the latest version of an application on several websites at once.
+ * Instead of waiting for the Play Store to fail before trying AppBrain, and for AppBrain to fail before
+ * trying the Xposed repository (or any user-defined source), the next source is queried as soon as the previous one failed or took longer
+ * than a threshold.
+ * The first valid version wins and the requests which are still running are aborted.
+ */
+public class SourceLookup
+{
+    /**
+     * Time after which the next source is queried if the current one hasn't answered.
+     */
+    public static final long HEDGE_DELAY = 1500;
+
+    /**
+     * Pacing of the lookups started from the user interface. Checking a single application never waits,
+     * but checking all of them at once doesn't flood the websites.
+     */
+    public static final int INTERACTIVE_DELAY = 500;
+    public static final int INTERACTIVE_BURST = 8;
+
+    private static HostRateLimiter default_limiter = null;
+
+    private AppPersistence persistence;
+    private Resources resources;
+    private HostRateLimiter limiter;
+    private ExecutorService pool;
+
+    /**
+     * @param persistence A persistence object, used by the requests for their page cache.
+     * @param resources The resources used to access the localized strings.
+     * @param limiter The rate limiter each request goes through. May be null.
+     * @param pool The threads on which the requests are performed. The lookup waits for them, so it
+     *             must not run on this pool itself.
+     */
+    public SourceLookup(AppPersistence persistence, Resources resources, HostRateLimiter limiter,
+                        ExecutorService pool)
+    {
+        this.persistence = persistence;
+        this.resources = resources;
+        this.limiter = limiter;
+        this.pool = pool;
+    }
+
+    /**
+     * Returns a lookup for checks requested from the user interface. Those are paced less
+     * strictly than the background checks, as the user asked for them explicitly.
+     */
+    public static synchronized SourceLookup getDefault(AppPersistence persistence, Resources resources)
+    {
+        if (default_limiter == null) {
+            default_limiter = new HostRateLimiter(INTERACTIVE_DELAY, INTERACTIVE_BURST);
+        }
+        return new SourceLookup(persistence, resources, default_limiter, AppExecutors.io());
+    }
+
+    /**
+     * Queries the websites for an application. The application itself is not modified: the result
+     * has to be processed by the returned task.
+     * @param app The application to check.
+     * @return The task whose result should be kept. Its <code>getResult</code> method returns the
+     * first valid version found, or the result the sequential fallback chain would have kept.
+     * @throws InterruptedException If the calling thread is interrupted. Running requests are aborted.
+     */
+    public VersionGetTask lookup(InstalledApp app) throws InterruptedException
+    {
+        CompletionService<Integer> cs = new ExecutorCompletionService<Integer>(pool);
+        VersionSource[] order = get_source_order(app);
+        List<VersionGetTask> tasks = new ArrayList<VersionGetTask>(order.length);
+        List<Future<Integer>> futures = new ArrayList<Future<Integer>>(order.length);
+        int completed = 0;
+
+        try
+        {
+            launch(cs, app, tasks, futures, order);
+
+            while (completed < tasks.size())
+            {
+                Future<Integer> f;
+                if (tasks.size() < order.length)
+                {
+                    f = cs.poll(HEDGE_DELAY, TimeUnit.MILLISECONDS);
+                    if (f == null)
+                    {
+                        // The current source is slow: hedge with the next one.
+                        launch(cs, app, tasks, futures, order);
+                        continue;
+                    }
+                }
+                else {
+                    f = cs.take();
+                }
+                ++completed;
+
+                VersionGetTask task = tasks.get(get_index(f));
+                if (VersionGetTask.isValidResult(task.getResult()))
+                {
+                    Log.v("ApkTrack", app.getPackageName() + " resolved on " + task.getSource().getName());
+                    persistence.recordSourceSuccess(app.getPackageName(), task.getSource().getName());
+                    return task;
+                }
+                else if (task.getResult().getStatus() == VersionGetResult.Status.ERROR) {
+                    persistence.recordSourceFailure(app.getPackageName(), task.getSource().getName());
+                }
+                // This source failed: there is no reason to wait before trying the next one.
+                if (tasks.size() < order.length) {
+                    launch(cs, app, tasks, futures, order);
+                }
+            }
+
+            // No valid version anywhere. Keep what the sequential chain would have kept: the first
+            // result which isn't a "try the next source" error, or the last one.
+            for (VersionGetTask task : tasks)
+            {
+                if (task.getResult().getStatus() != VersionGetResult.Status.ERROR) {
+                    return task;
+                }
+            }
+            return tasks.get(tasks.size() - 1);
+        }
+        finally
+        {
+            // Cancel the requests which lost the race.
+            for (int i = 0 ; i < futures.size() ; ++i)
+            {
+                if (!futures.get(i).isDone())
+                {
+                    tasks.get(i).abort();
+                    futures.get(i).cancel(true);
+                }
+            }
+        }
+    }
+
+    /**
+     * Orders the sources for an application: the one which last returned a version comes first, then the
+     * others by increasing number of consecutive failures. Ties keep the default order (see
+     * <code>VersionSources.getAll</code>).
+     */
+    private VersionSource[] get_source_order(InstalledApp app)
+    {
+        List<VersionSource> sources = VersionSources.getAll(persistence);
+        VersionSource[] order = sources.toArray(new VersionSource[sources.size()]);
+        final HashMap<String, SourceStats> stats = persistence.getSourceStats(app.getPackageName());
+        if (stats.isEmpty()) {
+            return order;
+        }
+        Arrays.sort(order, new Comparator<VersionSource>() {
+            @Override
+            public int compare(VersionSource p1, VersionSource p2)
+            {
+                SourceStats s1 = stats.get(p1.getName());
+                SourceStats s2 = stats.get(p2.getName());
+                long success1 = s1 == null ? 0 : s1.getLastSuccess();
+                long success2 = s2 == null ? 0 : s2.getLastSuccess();
+                if (success1 != success2) {
+                    return success1 > success2 ? -1 : 1;
+                }
+                int failures1 = s1 == null ? 0 : s1.getFailures();
+                int failures2 = s2 == null ? 0 : s2.getFailures();
+                return failures1 - failures2;
+            }
+        });
+        return order;
+    }
+
+    /**
+     * Starts the request to the next source. The rate limiter is waited for on the calling thread, so that
+     * the threads of the pool (which are shared with the rest of the application) never sleep on it.
+     * @throws InterruptedException If the calling thread is interrupted while waiting for the rate limiter.
+     */
+    private void launch(CompletionService<Integer> cs, InstalledApp app, List<VersionGetTask> tasks,
+                        List<Future<Integer>> futures, VersionSource[] order) throws InterruptedException
+    {
+        final int index = tasks.size();
+        final VersionGetTask task = new VersionGetTask(app, null, persistence, resources, order[index]);
+        if (limiter != null) {
+            limiter.acquire(task.getTargetHost());
+        }
+        tasks.add(task);
+        futures.add(cs.submit(new Callable<Integer>() {
+            @Override
+            public Integer call()
+            {
+                task.fetch();
+                return index;
+            }
+        }));
+    }
+
+    private static int get_index(Future<Integer> f) throws InterruptedException
+    {
+        try {
+            return f.get();
+        }
+        catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+    }
+}
@@ -0,0 +1,47 @@
+/*
+ * Copyright (c) 2014
+ *
+ * ApkTrack is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ApkTrack is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ApkTrack.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fr.kwiatkowski.ApkTrack;
+
+/**
+ * How a website fared for an application.
+ */
+class SourceStats
+{
+    private long last_success;
+    private int failures;
+
+    SourceStats(long last_success, int failures)
+    {
+        this.last_success = last_success;
+        this.failures = failures;
+    }
+
+    /**
+     * @return The timestamp of the last check which found a version on this website, or 0 if it never did.
+     */
+    public long getLastSuccess() {
+        return last_success;
+    }
+
+    /**
+     * @return The number of consecutive checks for which this website had no version.
+     */
+    public int getFailures() {
+        return failures;
+    }
+}
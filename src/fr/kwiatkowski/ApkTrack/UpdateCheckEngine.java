@@ -0,0 +1,154 @@
+/*
+ * Copyright (c) 2014
+ *
+ * ApkTrack is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ApkTrack is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ApkTrack.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fr.kwiatkowski.ApkTrack;
+
+import android.content.res.Resources;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+
+/**
+ * Checks the versions of a list of applications on the shared check threads (see <code>AppExecutors</code>),
+ * with a bounded number of checks in flight.
+ * Every request goes through a <code>HostRateLimiter</code>: checks which end up on different
+ * websites run at the same time, while each website is still contacted at a polite pace.
+ */
+public class UpdateCheckEngine
+{
+    /**
+     * Number of applications which may be checked at the same time.
+     */
+    public static final int MAX_PARALLEL_CHECKS = HttpClient.MAX_CONNECTIONS_PER_HOST;
+
+    /**
+     * Callbacks invoked from the worker threads.
+     */
+    public interface Listener
+    {
+        /**
+         * Called before the websites are queried for an application.
+         */
+        void onCheckStarted(InstalledApp app);
+
+        /**
+         * Called when a new version is found for an application.
+         */
+        void onAppUpdated(InstalledApp app);
+    }
+
+    private AppPersistence persistence;
+    private Resources resources;
+    private HostRateLimiter limiter;
+    private int parallelism;
+    private SourceLookup lookup;
+
+    public UpdateCheckEngine(AppPersistence persistence, Resources resources, HostRateLimiter limiter, int parallelism)
+    {
+        this.persistence = persistence;
+        this.resources = resources;
+        this.limiter = limiter;
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Checks all the given applications and returns once every check is over.
+     * @param apps The applications to check.
+     * @param listener Notified for each application which can be updated. May be null.
+     * @throws InterruptedException If the calling thread is interrupted. Pending checks are cancelled.
+     */
+    public void run(List<InstalledApp> apps, final Listener listener) throws InterruptedException
+    {
+        // The check threads are shared: only submit a new check when one of ours is over, instead of
+        // queuing all of them in front of the other jobs.
+        CompletionService<Void> cs = new ExecutorCompletionService<Void>(AppExecutors.checks());
+        lookup = new SourceLookup(persistence, resources, limiter, AppExecutors.io());
+        List<Future<Void>> running = new ArrayList<Future<Void>>(parallelism);
+        Iterator<InstalledApp> it = apps.iterator();
+        try
+        {
+            while (running.size() < parallelism && it.hasNext()) {
+                running.add(cs.submit(make_check(it.next(), listener), null));
+            }
+            while (!running.isEmpty())
+            {
+                Future<Void> f = cs.take();
+                running.remove(f);
+                try {
+                    f.get();
+                }
+                catch (ExecutionException e) {
+                    Log.e("ApkTrack", "Version check failed! (" + e.getCause() + ")");
+                }
+                if (it.hasNext()) {
+                    running.add(cs.submit(make_check(it.next(), listener), null));
+                }
+            }
+        }
+        finally
+        {
+            for (Future<Void> f : running) {
+                f.cancel(true);
+            }
+        }
+    }
+
+    private Runnable make_check(final InstalledApp app, final Listener listener)
+    {
+        return new Runnable() {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    if (listener != null) {
+                        listener.onCheckStarted(app);
+                    }
+                    VersionGetResult res = check(app);
+                    if (res.getStatus() == VersionGetResult.Status.UPDATED && listener != null) {
+                        listener.onAppUpdated(app);
+                    }
+                }
+                catch (InterruptedException ignored) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+    }
+
+    /**
+     * Checks an application against every known source.
+     * The sources are hedged: the first valid version is kept.
+     * @param app The application to check.
+     * @return The processed result of the source which was kept.
+     */
+    private VersionGetResult check(InstalledApp app) throws InterruptedException
+    {
+        Log.v("ApkTrack", "Service checking updates for " + app.getPackageName());
+        app.setCurrentlyChecking(true);
+        VersionGetTask task = lookup.lookup(app);
+        VersionGetResult res = task.process();
+        Log.v("ApkTrack", task.getSource().getName() + " check returned: " + res.getStatus());
+        return res;
+    }
+}
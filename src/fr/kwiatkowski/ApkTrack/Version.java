@@ -0,0 +1,251 @@
+/*
+ * Copyright (c) 2014
+ *
+ * ApkTrack is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ApkTrack is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ApkTrack.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fr.kwiatkowski.ApkTrack;
+
+/**
+ * A version number, parsed once into numeric components and a qualifier so that versions can be
+ * ordered instead of merely compared as strings: "1.10" is newer than "1.9", and "2.0-beta" is older than "2.0".
+ * Strings which don't start with a number (i.e. "Varies with device") are kept as they are, and can only
+ * be compared for equality.
+ */
+public final class Version implements Comparable<Version>
+{
+    // Rank of the pre-release qualifiers. Anything else (build numbers, "-release"...) ranks like a release.
+    private static final int QUALIFIER_DEV = -3;
+    private static final int QUALIFIER_BETA = -2;
+    private static final int QUALIFIER_RC = -1;
+    private static final int QUALIFIER_NONE = 0;
+
+    private final String raw;
+    private final int[] components; // Null if the string isn't a version number.
+    private final int qualifier;
+    private final int qualifier_number;
+    private final String suffix; // The letters and digits following the numeric part, except the qualifier.
+
+    private Version(String raw, int[] components, int qualifier, int qualifier_number, String suffix)
+    {
+        this.raw = raw;
+        this.components = components;
+        this.qualifier = qualifier;
+        this.qualifier_number = qualifier_number;
+        this.suffix = suffix;
+    }
+
+    /**
+     * @param version A version string, such as "4.2.2-beta2 (1234)".
+     * @return The parsed version, or null if the string is null.
+     */
+    public static Version parse(String version)
+    {
+        if (version == null) {
+            return null;
+        }
+        String s = version.trim();
+        int pos = 0;
+        if (s.length() > 1 && (s.charAt(0) == 'v' || s.charAt(0) == 'V') && Character.isDigit(s.charAt(1))) {
+            pos = 1;
+        }
+        if (pos >= s.length() || !Character.isDigit(s.charAt(pos))) {
+            return new Version(version, null, QUALIFIER_NONE, 0, "");
+        }
+
+        // Numeric components, separated by dots.
+        int count = 1;
+        for (int i = pos ; i < s.length() ; ++i)
+        {
+            char c = s.charAt(i);
+            if (c == '.' && i + 1 < s.length() && Character.isDigit(s.charAt(i + 1))) {
+                ++count;
+            }
+            else if (!Character.isDigit(c)) {
+                break;
+            }
+        }
+        int[] components = new int[count];
+        for (int i = 0 ; i < count ; ++i)
+        {
+            long value = 0;
+            while (pos < s.length() && Character.isDigit(s.charAt(pos)))
+            {
+                value = Math.min(Integer.MAX_VALUE, value * 10 + (s.charAt(pos) - '0'));
+                ++pos;
+            }
+            components[i] = (int) value;
+            if (i < count - 1) {
+                ++pos; // Skip the dot.
+            }
+        }
+
+        // The qualifier is the word following the numeric part, i.e. "beta" in "2.0-beta2" or "2.0 (beta 2)".
+        // The whole word must match: "2.0 (march update)" is not a release candidate because "march" contains "rc".
+        String rest = s.substring(pos).toLowerCase();
+        int start = 0;
+        while (start < rest.length() && !Character.isLetterOrDigit(rest.charAt(start))) {
+            ++start;
+        }
+        int end = start;
+        while (end < rest.length() && Character.isLetter(rest.charAt(end))) {
+            ++end;
+        }
+        int qualifier = get_qualifier(rest.substring(start, end));
+        // The number of a pre-release follows its qualifier ("rc2", "rc.2", "rc 2"). Otherwise, the first number
+        // found is taken as a build number.
+        // Whatever else follows is kept, so that versions which only differ by it ("1.0a" and "1.0b", or "1.0"
+        // and "1.0-hotfix") are never considered the same.
+        return new Version(version, components, qualifier,
+                get_number(rest, qualifier == QUALIFIER_NONE ? 0 : end),
+                get_suffix(qualifier == QUALIFIER_NONE ? rest : rest.substring(end)));
+    }
+
+    /**
+     * @return The letters and digits of the string: separators are ignored, so that "2.0 (beta 2)" and
+     * "2.0-beta2" are the same version.
+     */
+    private static String get_suffix(String rest)
+    {
+        StringBuilder sb = new StringBuilder(rest.length());
+        for (int i = 0 ; i < rest.length() ; ++i)
+        {
+            if (Character.isLetterOrDigit(rest.charAt(i))) {
+                sb.append(rest.charAt(i));
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @param word The word following the numeric part of a version, in lower case.
+     * @return The rank of the qualifier.
+     */
+    private static int get_qualifier(String word)
+    {
+        if (word.equals("alpha") || word.equals("dev") || word.equals("snapshot")) {
+            return QUALIFIER_DEV;
+        }
+        if (word.equals("beta")) {
+            return QUALIFIER_BETA;
+        }
+        if (word.equals("rc") || word.equals("pre") || word.equals("preview")) {
+            return QUALIFIER_RC;
+        }
+        return QUALIFIER_NONE;
+    }
+
+    /**
+     * @return The first number found in the string after the given position, or 0 if there is none.
+     */
+    private static int get_number(String rest, int from)
+    {
+        long value = 0;
+        int i = from;
+        while (i < rest.length() && !Character.isDigit(rest.charAt(i))) {
+            ++i;
+        }
+        while (i < rest.length() && Character.isDigit(rest.charAt(i)))
+        {
+            value = Math.min(Integer.MAX_VALUE, value * 10 + (rest.charAt(i) - '0'));
+            ++i;
+        }
+        return (int) value;
+    }
+
+    /**
+     * @return Whether the string could be parsed as a version number.
+     */
+    public boolean isValid() {
+        return components != null;
+    }
+
+    /**
+     * Orders two valid versions. Missing components count as 0, so "1.0" and "1.0.0" are equal.
+     * Invalid versions are considered older than valid ones.
+     */
+    @Override
+    public int compareTo(Version v)
+    {
+        if (components == null || v.components == null)
+        {
+            if (components == null && v.components == null) {
+                return raw.compareTo(v.raw);
+            }
+            return components == null ? -1 : 1;
+        }
+        int n = Math.max(components.length, v.components.length);
+        for (int i = 0 ; i < n ; ++i)
+        {
+            int a = i < components.length ? components[i] : 0;
+            int b = i < v.components.length ? v.components[i] : 0;
+            if (a != b) {
+                return a < b ? -1 : 1;
+            }
+        }
+        if (qualifier != v.qualifier) {
+            return qualifier < v.qualifier ? -1 : 1;
+        }
+        if (qualifier_number != v.qualifier_number) {
+            return qualifier_number < v.qualifier_number ? -1 : 1;
+        }
+        // No ordering is known for the rest, i.e. "a" and "b" in "1.0a" and "1.0b": compare the strings,
+        // a version without suffix coming first.
+        return Integer.signum(suffix.compareTo(v.suffix));
+    }
+
+    /**
+     * @param v Another version. May be null.
+     * @return Whether this version is more recent than the other one. If either of them isn't a version
+     * number, whether the strings differ.
+     */
+    public boolean isNewerThan(Version v)
+    {
+        if (v == null) {
+            return true;
+        }
+        if (components == null || v.components == null) {
+            return !raw.trim().equals(v.raw.trim());
+        }
+        return compareTo(v) > 0;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof Version && compareTo((Version) o) == 0;
+    }
+
+    @Override
+    public int hashCode()
+    {
+        if (components == null) {
+            return raw.hashCode();
+        }
+        // Trailing zeros are ignored by compareTo.
+        int n = components.length;
+        while (n > 0 && components[n - 1] == 0) {
+            --n;
+        }
+        int h = 31 * (31 * qualifier + qualifier_number) + suffix.hashCode();
+        for (int i = 0 ; i < n ; ++i) {
+            h = 31 * h + components[i];
+        }
+        return h;
+    }
+
+    @Override
+    public String toString() {
+        return raw;
+    }
+}
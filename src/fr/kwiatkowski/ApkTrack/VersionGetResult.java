@@ -0,0 +1,61 @@
+/*
+ * Copyright (c) 2014
+ *
+ * ApkTrack is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ApkTrack is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ApkTrack.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fr.kwiatkowski.ApkTrack;
+
+class VersionGetResult
+{
+    enum Status {SUCCESS, ERROR, NETWORK_ERROR, UPDATED}
+
+    private String message;
+    private boolean fatal;
+    private Status result;
+
+    VersionGetResult(Status status, String message)
+    {
+        this.message = message;
+        this.result = status;
+        this.fatal = false;
+    }
+
+    VersionGetResult(Status status, String message, boolean fatal)
+    {
+        this.result = status;
+        this.message = message;
+        this.fatal = fatal;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    public boolean isFatal() {
+        return fatal;
+    }
+
+    public Status getStatus() {
+        return result;
+    }
+
+    public void setStatus(Status result) {
+        this.result = result;
+    }
+
+    public void setMessage(String message) {
+        this.message = message;
+    }
+}
@@ -20,16 +20,14 @@ package fr.kwiatkowski.ApkTrack;
 import android.content.res.Resources;
 import android.os.AsyncTask;
 import android.util.Log;
-import android.webkit.WebSettings;
 
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.UnknownHostException;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 /**
  * The role of this asynchronous task is to request the Play Store page or AppBrain for a given app, and to
@@ -37,62 +35,35 @@ import java.util.regex.Pattern;
  */
 public class VersionGetTask extends AsyncTask<Void, Void, VersionGetResult>
 {
+    /**
+     * Callback invoked on the UI thread once the task is over.
+     */
+    public interface Listener
+    {
+        /**
+         * Called after the result has been processed, or after the task was cancelled.
+         */
+        void onCheckFinished(VersionGetTask task);
+    }
+
     private InstalledApp app;
     private AppAdapter la;
     private AppPersistence persistence;
-    private PageUsed page_used;
-    private String target_url;
+    private VersionSource source;
     private Resources resources;
+    private boolean all_sources = false;
+    private Listener listener = null;
 
-    enum PageUsed { PLAY_STORE, APPBRAIN, XPOSED_STABLE}
-
-    private static final String PLAY_STORE_URL = "https://play.google.com/store/apps/details?id=%1$s";
-    private static final String APPBRAIN_URL = "https://www.appbrain.com/app/google/%1$s";
-    private static final String XPOSED_URL = "http://repo.xposed.info/module/%1$s";
-
-    /**
-     * The regexp to extract the version number for Google's Play Store.
-     * May have to be updated as the site changes.
-     */
-    private static Pattern play_find_version_pattern;
-
-    /**
-     * The regexp to extract the version number for AppBrain.
-     * May have to be updated as the site changes.
-     */
-    private static Pattern appbrain_find_version_pattern;
-
-    /**
-     * Pattern used to detect apps that are no longer available from AppBrain.
-     */
-    private static Pattern appbrain_no_longer_available;
-
-    /**
-     * The regexp to extract the version number for Xposed Modules.
-     * May have to be updated as the site changes.
-     */
-    private static Pattern xposed_find_version_pattern;
-
-    /**
-     * Regexp used to check if a string is a version number, or an error string.
-     * For instance, Google Play may return "Version varies depending on the device" and
-     * we have to recognize this as an error.
-     */
-    private static Pattern check_version_pattern;
-
-    static {
-        play_find_version_pattern = Pattern.compile("itemprop=\"softwareVersion\">([^<]+?)</div>");
-        appbrain_find_version_pattern = Pattern.compile("<div class=\"clDesc\">Version ([^<]+?)</div>");
-        appbrain_no_longer_available = Pattern.compile("This app is unfortunately no longer available on the Android market.");
-        xposed_find_version_pattern = Pattern.compile(">([^<]+?)</div></div></div><div class=\"field field-name-field-release-type field-type-list-text field-label-inline clearfix\"><div class=\"field-label\">Release type:&nbsp;</div><div class=\"field-items\"><div class=\"field-item even\">Stable");
-        check_version_pattern = Pattern.compile("^([^ ]| \\()*$");
-    }
+    // State of the request, when fetched through a SourceLookup.
+    private volatile VersionGetResult result = null;
+    private volatile HttpURLConnection connection = null;
+    private volatile boolean aborted = false;
 
     /**
      * The role of this task is to request a web page for a given app, and to
      * use a regular expression to get its latest advertised version (when displayed).
      *
-     * This constructor defaults the requested page to the Google Play Store.
+     * This constructor queries all the known websites, starting with the Google Play Store.
      *
      * @param app The application whose version we wish to check.
      * @param la The adapter to notify once the data has been retreived.
@@ -105,9 +76,9 @@ public class VersionGetTask extends AsyncTask<Void, Void, VersionGetResult>
         this.app = app;
         this.la = la;
         this.persistence = persistence;
-        this.page_used = PageUsed.PLAY_STORE;
-        target_url = PLAY_STORE_URL;
+        this.source = VersionSources.PLAY_STORE;
         this.resources = resources;
+        this.all_sources = true;
     }
 
     /**
@@ -117,75 +88,143 @@ public class VersionGetTask extends AsyncTask<Void, Void, VersionGetResult>
      * @param la The adapter to notify once the data has been retreived.
      * @param persistence A persistence object to save the new information.
      * @param resources The resourced object used to access the localized strings.
-     * @param page The page to check
+     * @param source The website to check
      */
-    public VersionGetTask(InstalledApp app, AppAdapter la, AppPersistence persistence, Resources resources, PageUsed page)
+    public VersionGetTask(InstalledApp app, AppAdapter la, AppPersistence persistence, Resources resources, VersionSource source)
     {
         super();
         this.app = app;
         this.la = la;
         this.persistence = persistence;
-        this.page_used = page;
+        this.source = source;
         this.resources = resources;
-
-        if (page_used == PageUsed.PLAY_STORE) {
-            target_url = PLAY_STORE_URL;
-        }
-        else if (page_used == PageUsed.APPBRAIN) {
-            target_url = APPBRAIN_URL;
-        }
-        else if (page_used == PageUsed.XPOSED_STABLE) {
-            target_url = XPOSED_URL;
-        }
-        // TODO: User supplied webpage & regexp
     }
 
     /**
      * This method performs the task in a synchronous manner.
-     * Use @see <code>execute</code> instead if called from the UI thread.
+     * Use @see <code>executeOnExecutor(AppExecutors.checks())</code> instead if called from the UI thread.
      */
     public VersionGetResult sync_execute()
     {
-        VersionGetResult res = get_page(target_url);
+        VersionGetResult res = get_page();
         process_result(res);
         return res;
     }
 
+    /**
+     * Requests the web page without processing it. The result is available through <code>getResult</code>.
+     * The application is not modified, so several sources may be fetched at the same time.
+     */
+    public void fetch() {
+        result = get_page();
+    }
+
+    /**
+     * Aborts the request performed by <code>fetch</code>, if it is still running.
+     */
+    public void abort()
+    {
+        aborted = true;
+        HttpURLConnection huc = connection;
+        if (huc != null) {
+            huc.disconnect();
+        }
+    }
+
+    /**
+     * Saves the result obtained by <code>fetch</code> into the application.
+     * @return The processed result.
+     */
+    public VersionGetResult process()
+    {
+        process_result(result);
+        return result;
+    }
+
+    public VersionGetResult getResult() {
+        return result;
+    }
+
+    void setResult(VersionGetResult result) {
+        this.result = result;
+    }
+
+    public VersionSource getSource() {
+        return source;
+    }
+
+    public InstalledApp getApp() {
+        return app;
+    }
+
+    /**
+     * @param listener Notified on the UI thread when the task started with <code>execute</code> is over.
+     */
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * @param result The result of a request.
+     * @return Whether the result contains a version number. Invalid results mean the next source should be tried.
+     */
+    public static boolean isValidResult(VersionGetResult result)
+    {
+        return result != null &&
+               result.getStatus() == VersionGetResult.Status.SUCCESS &&
+               result.getMessage() != null &&
+               VersionSources.check_version_pattern.matcher(result.getMessage().trim()).matches();
+    }
+
+    /**
+     * @return The host which will be contacted by this task. Used for rate limiting purposes.
+     */
+    public String getTargetHost()
+    {
+        String url = source.getUrl(app.getPackageName());
+        try {
+            return new URL(url).getHost();
+        }
+        catch (MalformedURLException e) {
+            return url;
+        }
+    }
+
     private void process_result(VersionGetResult result)
     {
         app.setCurrentlyChecking(false);
 
         if (result.getStatus() == VersionGetResult.Status.SUCCESS)
         {
-            Matcher m = null;
-            if (page_used == PageUsed.PLAY_STORE) {
-                m = play_find_version_pattern.matcher(result.getMessage());
-            }
-            else if (page_used == PageUsed.APPBRAIN) {
-                m = appbrain_find_version_pattern.matcher(result.getMessage());
-            }
-            else if (page_used == PageUsed.XPOSED_STABLE) {
-                m = xposed_find_version_pattern.matcher(result.getMessage());
-            }
-            // TODO: Support user-specified page & regexp
-
-            if (m != null && m.find())
+            // The page has already been scanned: the message contains the extracted version, if any.
+            if (result.getMessage() != null)
             {
-                String version = m.group(1).trim();
+                String version = result.getMessage().trim();
                 Log.v("ApkTrack", "Version obtained: " + version);
+                boolean valid = VersionSources.check_version_pattern.matcher(version).matches();
+                if (valid)
+                {
+                    // A new release was published since the last check. Websites lagging behind don't count.
+                    // Only actual version numbers are compared: strings such as "Varies with device" would
+                    // always differ from the other version, and be taken for a release.
+                    boolean version_changed = app.getLatestVersion() != null &&
+                                              app.getParsedLatestVersion().isValid() &&
+                                              Version.parse(version).isNewerThan(app.getParsedLatestVersion());
+                    persistence.recordCheck(app.getPackageName(), version_changed);
+                }
                 app.setLatestVersion(version);
 
                 // Change the status to ERROR if this is not a version number.
-                if (!check_version_pattern.matcher(version).matches())
+                if (!valid)
                 {
                     Log.v("ApkTrack", "This is not recognized as a version number.");
                     result.setStatus(VersionGetResult.Status.ERROR);
                 }
                 // Do not perform further auto checks if this is not a version number (i.e. "Varies with the device").
-                app.setLastCheckFatalError(!check_version_pattern.matcher(version).matches());
+                app.setLastCheckFatalError(!valid);
 
                 // Update the result object. This data is forwarded to the service during periodic updates.
-                if (!app.isLastCheckFatalError() && !app.getVersion().equals(version))
+                if (app.isUpdateAvailable())
                 {
                     result.setMessage(version);
                     result.setStatus(VersionGetResult.Status.UPDATED);
@@ -193,20 +232,8 @@ public class VersionGetTask extends AsyncTask<Void, Void, VersionGetResult>
             }
             else
             {
-                // AppBrain may have pages for apps it doesn't have. Treat as a 404.
-                if (page_used == PageUsed.APPBRAIN)
-                {
-                    m = appbrain_no_longer_available.matcher(result.getMessage());
-                    if (m.find())
-                    {
-                        Log.v("ApkTrack", "Application no longer available on AppBrain.");
-                        result.setStatus(VersionGetResult.Status.ERROR);
-                        return;
-                    }
-                }
-
                 Log.v("ApkTrack", "Nothing matched by the regular expression.");
-                Log.v("ApkTrack", "Requested page: " + page_used);
+                Log.v("ApkTrack", "Requested page: " + source.getName());
                 app.setLastCheckFatalError(true);
             }
         }
@@ -229,20 +256,74 @@ public class VersionGetTask extends AsyncTask<Void, Void, VersionGetResult>
         }
     }
 
-    private VersionGetResult get_page(String url)
+    /**
+     * @return A scanner looking for the version number on the requested page, and for the
+     * "no longer available" marker (pattern #1) if the website has one.
+     */
+    private PageScanner get_scanner()
+    {
+        if (source.getUnavailablePattern() != null) {
+            return new PageScanner(source.getVersionPattern(), source.getUnavailablePattern());
+        }
+        return new PageScanner(source.getVersionPattern());
+    }
+
+    private VersionGetResult get_page()
     {
-        Log.v("ApkTrack", "Requesting " + String.format(url, app.getPackageName()));
+        String url = source.getUrl(app.getPackageName());
+        Log.v("ApkTrack", "Requesting " + url);
         InputStream conn = null;
         try
         {
-            HttpURLConnection huc = (HttpURLConnection) new URL(String.format(url, app.getPackageName())).openConnection();
-            // AppBrain doesn't like non-browser user-agents. Use the device's default one.
-            huc.setRequestProperty("User-Agent", WebSettings.getDefaultUserAgent(null));
-            huc.setRequestMethod("GET");
-            huc.setReadTimeout(15000); // Timeout : 15s
+            HttpURLConnection huc = HttpClient.open(url);
+            connection = huc;
+
+            // Only download the page again if it changed since the last check.
+            CachedPage cached = persistence.getCachedPage(app.getPackageName(), source.getName());
+            if (cached != null)
+            {
+                if (cached.getEtag() != null) {
+                    huc.setRequestProperty("If-None-Match", cached.getEtag());
+                }
+                if (cached.getLastModified() != null) {
+                    huc.setRequestProperty("If-Modified-Since", cached.getLastModified());
+                }
+            }
+
             huc.connect();
-            conn = huc.getInputStream();
-            return new VersionGetResult(VersionGetResult.Status.SUCCESS, Misc.readAll(conn, 2048));
+            if (cached != null && huc.getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED)
+            {
+                Log.v("ApkTrack", "Page unchanged since the last check.");
+                // There is no body, but the (empty) stream must be closed for the connection to be reused.
+                try {
+                    huc.getInputStream().close();
+                }
+                catch (IOException e) {
+                    huc.disconnect();
+                }
+                return new VersionGetResult(VersionGetResult.Status.SUCCESS, cached.getVersion());
+            }
+            conn = HttpClient.getBody(huc);
+
+            // Stop reading the page as soon as the version has been found.
+            PageScanner scanner = get_scanner();
+            int found = scanner.scan(conn);
+            if (found == 1)
+            {
+                // Some websites (i.e. AppBrain) may have pages for apps they don't have. Treat as a 404.
+                Log.v("ApkTrack", "Application no longer available on " + source.getName() + ".");
+                return new VersionGetResult(VersionGetResult.Status.ERROR, resources.getString(R.string.no_data_found));
+            }
+            if (found != 0) {
+                return new VersionGetResult(VersionGetResult.Status.SUCCESS, null);
+            }
+
+            String etag = huc.getHeaderField("ETag");
+            String last_modified = huc.getHeaderField("Last-Modified");
+            if (etag != null || last_modified != null) {
+                persistence.saveCachedPage(app.getPackageName(), source.getName(), new CachedPage(etag, last_modified, scanner.getMatch()));
+            }
+            return new VersionGetResult(VersionGetResult.Status.SUCCESS, scanner.getMatch());
         }
         catch (FileNotFoundException e)
         {
@@ -254,7 +335,11 @@ public class VersionGetTask extends AsyncTask<Void, Void, VersionGetResult>
         }
         catch (Exception e)
         {
-            Log.e("ApkTrack", String.format(url, app.getPackageName()) + " could not be retrieved! (" +
+            if (aborted) {
+                // Another source answered first.
+                return new VersionGetResult(VersionGetResult.Status.NETWORK_ERROR, resources.getString(R.string.network_error));
+            }
+            Log.e("ApkTrack", url + " could not be retrieved! (" +
                     e.getMessage() + ")");
             e.printStackTrace();
 
@@ -263,6 +348,7 @@ public class VersionGetTask extends AsyncTask<Void, Void, VersionGetResult>
         }
         finally
         {
+            connection = null;
             if (conn != null) {
                 try {
                     conn.close();
@@ -279,69 +365,46 @@ public class VersionGetTask extends AsyncTask<Void, Void, VersionGetResult>
     @Override
     protected VersionGetResult doInBackground(Void... voids)
     {
-        VersionGetResult res = get_page(target_url);
-        Log.v("ApkTrack", app.getDisplayName() + " check result (" + page_used + "): " + res.getStatus());
-        return res;
+        if (all_sources)
+        {
+            try
+            {
+                VersionGetTask winner = SourceLookup.getDefault(persistence, resources).lookup(app);
+                source = winner.getSource();
+                result = winner.getResult();
+            }
+            catch (InterruptedException e) {
+                result = new VersionGetResult(VersionGetResult.Status.NETWORK_ERROR, resources.getString(R.string.network_error));
+            }
+        }
+        else {
+            result = get_page();
+        }
+        Log.v("ApkTrack", app.getDisplayName() + " check result (" + source.getName() + "): " + result.getStatus());
+        return result;
     }
 
     @Override
     protected void onPostExecute(VersionGetResult s)
     {
         process_result(s);
-        if (s.getStatus() == VersionGetResult.Status.ERROR && page_used == PageUsed.PLAY_STORE)
-        {
-            Log.v("ApkTrack", "Play Store check failed. Trying AppBrain...");
-            app.setCurrentlyChecking(true);
-            new VersionGetTask(app, la, persistence, resources, PageUsed.APPBRAIN).execute();
+        if (listener != null) {
+            listener.onCheckFinished(this);
         }
-        else if (s.getStatus() == VersionGetResult.Status.ERROR && page_used == PageUsed.APPBRAIN)
-        {
-            Log.v("ApkTrack", "Appbrain check failed. Mabye the package is an Xposed module...");
-            app.setCurrentlyChecking(true);
-            new VersionGetTask(app, la, persistence, resources, PageUsed.XPOSED_STABLE).execute();
-        }
-    }
-}
-
-class VersionGetResult
-{
-    enum Status {SUCCESS, ERROR, NETWORK_ERROR, UPDATED}
-
-    private String message;
-    private boolean fatal;
-    private Status result;
-
-    VersionGetResult(Status status, String message)
-    {
-        this.message = message;
-        this.result = status;
-        this.fatal = false;
     }
 
-    VersionGetResult(Status status, String message, boolean fatal)
+    /**
+     * The check was cancelled: the application is left untouched.
+     */
+    @Override
+    protected void onCancelled()
     {
-        this.result = status;
-        this.message = message;
-        this.fatal = fatal;
-    }
-
-    public String getMessage() {
-        return message;
-    }
-
-    public boolean isFatal() {
-        return fatal;
-    }
-
-    public Status getStatus() {
-        return result;
-    }
-
-    public void setStatus(Status result) {
-        this.result = result;
-    }
-
-    public void setMessage(String message) {
-        this.message = message;
+        app.setCurrentlyChecking(false);
+        if (la != null) {
+            la.notifyDataSetChanged();
+        }
+        if (listener != null) {
+            listener.onCheckFinished(this);
+        }
     }
-}
\ No newline at end of file
+}
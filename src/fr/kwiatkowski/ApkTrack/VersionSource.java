@@ -0,0 +1,48 @@
+/*
+ * Copyright (c) 2014
+ *
+ * ApkTrack is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ApkTrack is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ApkTrack.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fr.kwiatkowski.ApkTrack;
+
+import java.util.regex.Pattern;
+
+/**
+ * A website on which the latest version of applications can be looked up.
+ * @see VersionSources for the built-in websites and the registration of user-defined ones.
+ */
+public interface VersionSource
+{
+    /**
+     * @return A unique name identifying the source. It is saved in the database, so it must not change.
+     */
+    String getName();
+
+    /**
+     * @param package_name The package of the application to look up.
+     * @return The URL of the page describing the application.
+     */
+    String getUrl(String package_name);
+
+    /**
+     * @return The pattern extracting the version number from the page, in its first capturing group.
+     */
+    Pattern getVersionPattern();
+
+    /**
+     * @return A pattern found on pages of applications the website doesn't actually have, or null.
+     */
+    Pattern getUnavailablePattern();
+}
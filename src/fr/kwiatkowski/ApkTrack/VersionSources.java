@@ -0,0 +1,200 @@
+/*
+ * Copyright (c) 2014
+ *
+ * ApkTrack is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ApkTrack is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ApkTrack.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fr.kwiatkowski.ApkTrack;
+
+import android.util.Log;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Registry of the websites on which versions are looked up.
+ * It contains the built-in sources (Play Store, AppBrain, Xposed repository) and the sources registered
+ * by the user. User-supplied regular expressions are validated and compiled once, and compiled patterns
+ * are shared between sources using the same expression.
+ */
+public class VersionSources
+{
+    /**
+     * Google's Play Store. The regexp may have to be updated as the site changes.
+     */
+    public static final VersionSource PLAY_STORE = new RegexVersionSource("PLAY_STORE",
+            "https://play.google.com/store/apps/details?id=%1$s",
+            Pattern.compile("itemprop=\"softwareVersion\">([^<]+?)</div>"),
+            null);
+
+    /**
+     * AppBrain. The regexp may have to be updated as the site changes.
+     * AppBrain may have pages for apps it doesn't have: those are detected with a second pattern.
+     */
+    public static final VersionSource APPBRAIN = new RegexVersionSource("APPBRAIN",
+            "https://www.appbrain.com/app/google/%1$s",
+            Pattern.compile("<div class=\"clDesc\">Version ([^<]+?)</div>"),
+            Pattern.compile("This app is unfortunately no longer available on the Android market."));
+
+    /**
+     * Stable releases of Xposed modules. The regexp may have to be updated as the site changes.
+     */
+    public static final VersionSource XPOSED_STABLE = new RegexVersionSource("XPOSED_STABLE",
+            "http://repo.xposed.info/module/%1$s",
+            Pattern.compile(">([^<]+?)</div></div></div><div class=\"field field-name-field-release-type field-type-list-text field-label-inline clearfix\"><div class=\"field-label\">Release type:&nbsp;</div><div class=\"field-items\"><div class=\"field-item even\">Stable"),
+            null);
+
+    /**
+     * Regexp used to check if a string is a version number, or an error string.
+     * For instance, Google Play may return "Version varies depending on the device" and
+     * we have to recognize this as an error.
+     */
+    static final Pattern check_version_pattern = Pattern.compile("^([^ ]| \\()*$");
+
+    private static final VersionSource[] BUILT_IN = { PLAY_STORE, APPBRAIN, XPOSED_STABLE };
+
+    private static final HashMap<String, Pattern> pattern_cache = new HashMap<String, Pattern>();
+    private static final LinkedHashMap<String, VersionSource> user_sources = new LinkedHashMap<String, VersionSource>();
+    private static List<VersionSource> all_sources = null;
+    private static boolean loaded = false;
+
+    /**
+     * Returns every known source, user-defined ones first, followed by the built-in ones in their
+     * default order of preference. The sources registered in the database are loaded on the first call.
+     * @param persistence The database containing the user-defined sources.
+     * @return An unmodifiable list of sources.
+     */
+    public static synchronized List<VersionSource> getAll(AppPersistence persistence)
+    {
+        if (!loaded)
+        {
+            loaded = true;
+            for (String[] def : persistence.getUserSources())
+            {
+                try {
+                    add(create(def[0], def[1], def[2]));
+                }
+                catch (IllegalArgumentException e) {
+                    Log.e("ApkTrack", "Ignoring invalid source " + def[0] + "! (" + e.getMessage() + ")");
+                }
+            }
+        }
+
+        if (all_sources == null)
+        {
+            ArrayList<VersionSource> list = new ArrayList<VersionSource>(user_sources.values());
+            Collections.addAll(list, BUILT_IN);
+            all_sources = Collections.unmodifiableList(list);
+        }
+        return all_sources;
+    }
+
+    /**
+     * Registers a user-defined source and saves it in the database. A source with the same name is replaced.
+     * @param persistence The database in which the source is saved.
+     * @param name The name of the source.
+     * @param url_template The URL of the application pages, where %1$s stands for the package name.
+     * @param regex A regular expression whose first capturing group is the version number.
+     * @return The registered source.
+     * @throws IllegalArgumentException If the name, URL template or regular expression is invalid.
+     */
+    public static synchronized VersionSource register(AppPersistence persistence, String name, String url_template, String regex)
+    {
+        getAll(persistence); // Load the saved sources before modifying them.
+        VersionSource source = create(name, url_template, regex);
+        persistence.saveUserSource(name, url_template, regex);
+        add(source);
+        return source;
+    }
+
+    /**
+     * Removes a user-defined source.
+     * @param persistence The database from which the source is deleted.
+     * @param name The name of the source.
+     */
+    public static synchronized void unregister(AppPersistence persistence, String name)
+    {
+        getAll(persistence);
+        persistence.deleteUserSource(name);
+        if (user_sources.remove(name) != null) {
+            all_sources = null;
+        }
+    }
+
+    /**
+     * Validates and compiles a source definition.
+     * @throws IllegalArgumentException If the definition is invalid.
+     */
+    static VersionSource create(String name, String url_template, String regex)
+    {
+        if (name == null || name.trim().isEmpty()) {
+            throw new IllegalArgumentException("The source has no name.");
+        }
+        for (VersionSource s : BUILT_IN)
+        {
+            if (s.getName().equals(name)) {
+                throw new IllegalArgumentException(name + " is a built-in source.");
+            }
+        }
+
+        if (url_template == null || !url_template.contains("%1$s")) {
+            throw new IllegalArgumentException("The URL must contain %1$s, which stands for the package name.");
+        }
+        try
+        {
+            String protocol = new URL(String.format(url_template, "com.example")).getProtocol();
+            if (!protocol.equals("http") && !protocol.equals("https")) {
+                throw new IllegalArgumentException("Only http and https URLs are supported.");
+            }
+        }
+        catch (MalformedURLException e) {
+            throw new IllegalArgumentException("Invalid URL: " + e.getMessage());
+        }
+
+        Pattern pattern = compile(regex); // Throws PatternSyntaxException, an IllegalArgumentException.
+        if (pattern.matcher("").groupCount() < 1) {
+            throw new IllegalArgumentException("The regular expression must capture the version number in a group.");
+        }
+        return new RegexVersionSource(name, url_template, pattern, null);
+    }
+
+    /**
+     * Compiles a regular expression, or returns the pattern compiled for it earlier.
+     */
+    private static Pattern compile(String regex)
+    {
+        if (regex == null) {
+            throw new IllegalArgumentException("No regular expression was given.");
+        }
+        Pattern p = pattern_cache.get(regex);
+        if (p == null)
+        {
+            p = Pattern.compile(regex);
+            pattern_cache.put(regex, p);
+        }
+        return p;
+    }
+
+    private static void add(VersionSource source)
+    {
+        user_sources.put(source.getName(), source);
+        all_sources = null;
+    }
+}
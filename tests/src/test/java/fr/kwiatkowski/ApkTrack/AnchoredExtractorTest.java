@@ -0,0 +1,127 @@
+/*
+ * Copyright (c) 2014
+ *
+ * ApkTrack is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ApkTrack is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ApkTrack.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package fr.kwiatkowski.ApkTrack;
+
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class AnchoredExtractorTest
+{
+    /**
+     * Supported patterns, anchored on the prefix or on the suffix, with greedy and lazy groups.
+     */
+    private static final String[] PATTERNS = {
+            "ab([^<]+?)</d>",
+            "a([^<]+)</d>",
+            "<d>([^<>]+?)>",
+            "aa([^a]+)aab",
+            "([^<]+?)<",
+            "ab<>",
+    };
+
+    /**
+     * Checks that the extractor returns what Matcher.find would on a text.
+     */
+    private static void assert_same_result(Pattern pattern, AnchoredExtractor extractor, String text)
+    {
+        Matcher m = pattern.matcher(text);
+        String expected = null;
+        if (m.find()) {
+            expected = m.groupCount() > 0 ? m.group(1) : m.group();
+        }
+        extractor.find(text);
+        assertEquals("/" + pattern + "/ on \"" + text + "\"", expected, extractor.getMatch());
+    }
+
+    @Test
+    public void matchesLikeTheRegexEngine()
+    {
+        Random rnd = new Random(1234);
+        String alphabet = "ab<>/d";
+        for (String regex : PATTERNS)
+        {
+            Pattern pattern = Pattern.compile(regex);
+            AnchoredExtractor extractor = AnchoredExtractor.compile(pattern);
+            assertNotNull(regex, extractor);
+            for (int n = 0 ; n < 20000 ; ++n)
+            {
+                StringBuilder text = new StringBuilder();
+                int length = rnd.nextInt(40);
+                for (int i = 0 ; i < length ; ++i) {
+                    text.append(alphabet.charAt(rnd.nextInt(alphabet.length())));
+                }
+                assert_same_result(pattern, extractor, text.toString());
+            }
+        }
+    }
+
+    /**
+     * Builds texts out of pieces of the built-in patterns, so that partial matches are frequent.
+     */
+    @Test
+    public void matchesTheBuiltInSources()
+    {
+        Random rnd = new Random(5678);
+        VersionSource[] sources = { VersionSources.PLAY_STORE, VersionSources.APPBRAIN, VersionSources.XPOSED_STABLE };
+        for (VersionSource source : sources)
+        {
+            Pattern pattern = source.getVersionPattern();
+            AnchoredExtractor extractor = AnchoredExtractor.compile(pattern);
+            assertNotNull(source.getName(), extractor);
+            String[] pieces = pattern.pattern().split("\\(\\[\\^<\\]\\+\\?\\)");
+            String[] fragments = { pieces[0], pieces[1], "1.2.3", "<", " ", "</div>",
+                    pieces[0].substring(0, pieces[0].length() / 2), pieces[1].substring(pieces[1].length() / 2) };
+            for (int n = 0 ; n < 5000 ; ++n)
+            {
+                StringBuilder text = new StringBuilder();
+                int count = rnd.nextInt(6);
+                for (int i = 0 ; i < count ; ++i) {
+                    text.append(fragments[rnd.nextInt(fragments.length)]);
+                }
+                assert_same_result(pattern, extractor, text.toString());
+            }
+        }
+    }
+
+    @Test
+    public void rejectsUnsupportedPatterns()
+    {
+        String[] unsupported = {
+                "a.b",                  // Metacharacter.
+                "a([^<]+?)b",           // The suffix doesn't start with an excluded character.
+                "a([^<]*)<",            // The field may be empty.
+                "a([a-z]+)<",           // Not a negated class.
+                "a([^a-z]+)<",          // Range.
+                "a\\d([^<]+)<",         // Character class escape.
+                "a([^<]+)<(x)",         // Second group.
+                "",
+        };
+        for (String regex : unsupported) {
+            assertNull(regex, AnchoredExtractor.compile(Pattern.compile(regex)));
+        }
+        assertNull(AnchoredExtractor.compile(Pattern.compile("a([^<]+)<", Pattern.CASE_INSENSITIVE)));
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright (c) 2014
+ *
+ * ApkTrack is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ApkTrack is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ApkTrack.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package fr.kwiatkowski.ApkTrack;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class AppListDiffTest
+{
+    private static InstalledApp app(String package_name, String version) {
+        return new InstalledApp(package_name, version, package_name.substring(package_name.lastIndexOf('.') + 1), false, null);
+    }
+
+    private static HashSet<String> packages(List<InstalledApp> apps)
+    {
+        HashSet<String> res = new HashSet<String>();
+        for (InstalledApp app : apps) {
+            res.add(app.getPackageName());
+        }
+        return res;
+    }
+
+    private static List<String> package_list(List<InstalledApp> apps)
+    {
+        ArrayList<String> res = new ArrayList<String>();
+        for (InstalledApp app : apps) {
+            res.add(app.getPackageName());
+        }
+        return res;
+    }
+
+    @Test
+    public void classifiesChanges()
+    {
+        List<InstalledApp> known = Arrays.asList(app("com.example.same", "1.0"), app("com.example.updated", "1.0"),
+                app("com.example.removed", "1.0"), app("com.example.noversion", null));
+        List<InstalledApp> detected = Arrays.asList(app("com.example.same", "1.0"), app("com.example.updated", "1.1"),
+                app("com.example.added", "2.0"), app("com.example.noversion", "3.0"));
+
+        AppListDiff diff = new AppListDiff(known, detected);
+        assertEquals(new HashSet<String>(Arrays.asList("com.example.added")), packages(diff.getAdded()));
+        assertEquals(new HashSet<String>(Arrays.asList("com.example.removed")), packages(diff.getRemoved()));
+        assertEquals(new HashSet<String>(Arrays.asList("com.example.updated", "com.example.noversion")),
+                packages(diff.getUpdated()));
+        for (InstalledApp app : diff.getUpdated()) {
+            assertEquals(app.getPackageName().equals("com.example.updated") ? "1.1" : "3.0", app.getVersion());
+        }
+    }
+
+    @Test
+    public void identicalListsGiveAnEmptyDiff()
+    {
+        List<InstalledApp> known = Arrays.asList(app("com.example.a", "1.0"), app("com.example.b", null));
+        List<InstalledApp> detected = Arrays.asList(app("com.example.b", null), app("com.example.a", "1.0"));
+        assertTrue(new AppListDiff(known, detected).isEmpty());
+    }
+
+    @Test
+    public void applyReplacesTheApplications()
+    {
+        ArrayList<InstalledApp> list = new ArrayList<InstalledApp>(Arrays.asList(
+                app("com.example.a", "1.0"), app("com.example.b", "1.0"), app("com.example.c", "1.0")));
+        List<InstalledApp> detected = Arrays.asList(app("com.example.a", "1.0"), app("com.example.c", "2.0"),
+                app("com.example.d", "1.0"));
+
+        AppListDiff diff = new AppListDiff(list, detected);
+        diff.apply(list);
+        assertEquals(Arrays.asList("com.example.a", "com.example.c", "com.example.d"), package_list(list));
+        assertEquals("2.0", list.get(1).getVersion());
+    }
+
+    /**
+     * Applies random diffs to a sorted list, and checks that the result is the sorted list of detected applications.
+     * Both the insertion path and the full sort path are covered.
+     */
+    @Test
+    public void applySortedKeepsTheOrder()
+    {
+        Comparator<InstalledApp> comparator = new AlphabeticalComparator();
+        Random rnd = new Random(42);
+        for (int changes : new int[] { 1, 5, 40 })
+        {
+            ArrayList<InstalledApp> list = new ArrayList<InstalledApp>();
+            for (int i = 0 ; i < 100 ; ++i) {
+                list.add(app("com.example.app" + String.format("%03d", i), "1.0"));
+            }
+            Collections.sort(list, comparator);
+
+            ArrayList<InstalledApp> detected = new ArrayList<InstalledApp>(list);
+            for (int i = 0 ; i < changes ; ++i)
+            {
+                switch (rnd.nextInt(3))
+                {
+                    case 0:
+                        detected.remove(rnd.nextInt(detected.size()));
+                        break;
+                    case 1:
+                        int index = rnd.nextInt(detected.size());
+                        detected.set(index, app(detected.get(index).getPackageName(), "2." + i));
+                        break;
+                    default:
+                        detected.add(app("com.example.new" + String.format("%03d", i), "1.0"));
+                }
+            }
+
+            new AppListDiff(list, detected).applySorted(list, comparator);
+            Collections.sort(detected, comparator);
+            assertEquals(package_list(detected), package_list(list));
+            for (int i = 0 ; i < list.size() ; ++i) {
+                assertEquals(detected.get(i).getVersion(), list.get(i).getVersion());
+            }
+        }
+    }
+
+    @Test
+    public void insertSortedFindsThePlace()
+    {
+        Comparator<InstalledApp> comparator = new AlphabeticalComparator();
+        ArrayList<InstalledApp> list = new ArrayList<InstalledApp>(Arrays.asList(
+                app("com.example.a", "1.0"), app("com.example.c", "1.0")));
+        AppListDiff.insertSorted(list, app("com.example.b", "1.0"), comparator);
+        AppListDiff.insertSorted(list, app("com.example.d", "1.0"), comparator);
+        assertEquals(Arrays.asList("com.example.a", "com.example.b", "com.example.c", "com.example.d"),
+                package_list(list));
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright (c) 2014
+ *
+ * ApkTrack is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ApkTrack is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ApkTrack.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package fr.kwiatkowski.ApkTrack;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CheckScheduleTest
+{
+    private static final long DAY = CheckSchedule.MIN_INTERVAL;
+    private static final long NOW = 1000 * DAY;
+
+    @Test
+    public void firstCheckUsesTheMinimumInterval()
+    {
+        CheckSchedule schedule = CheckSchedule.afterCheck(null, NOW, false);
+        assertEquals(0, schedule.getLastChange());
+        assertEquals(0, schedule.getReleaseInterval());
+        assertEquals(NOW + CheckSchedule.MIN_INTERVAL, schedule.getNextCheck());
+    }
+
+    @Test
+    public void firstChangeIsRecordedWithoutAnInterval()
+    {
+        CheckSchedule schedule = CheckSchedule.afterCheck(null, NOW, true);
+        assertEquals(NOW, schedule.getLastChange());
+        assertEquals(0, schedule.getReleaseInterval());
+        assertEquals(NOW + CheckSchedule.MIN_INTERVAL, schedule.getNextCheck());
+    }
+
+    @Test
+    public void secondChangeGivesTheInterval()
+    {
+        CheckSchedule schedule = CheckSchedule.afterCheck(null, NOW, true);
+        schedule = CheckSchedule.afterCheck(schedule, NOW + 20 * DAY, true);
+        assertEquals(NOW + 20 * DAY, schedule.getLastChange());
+        assertEquals(20 * DAY, schedule.getReleaseInterval());
+        // Four checks per release.
+        assertEquals(NOW + 25 * DAY, schedule.getNextCheck());
+    }
+
+    @Test
+    public void intervalIsSmoothed()
+    {
+        CheckSchedule schedule = new CheckSchedule(NOW, 20 * DAY, 0);
+        schedule = CheckSchedule.afterCheck(schedule, NOW + 10 * DAY, true);
+        assertEquals((long) (0.3 * 10 * DAY + 0.7 * 20 * DAY), schedule.getReleaseInterval());
+    }
+
+    @Test
+    public void pollIsClamped()
+    {
+        // Frequent releases: never more than one check per cycle.
+        CheckSchedule schedule = CheckSchedule.afterCheck(new CheckSchedule(NOW, DAY, 0), NOW + DAY, true);
+        assertEquals(NOW + DAY + CheckSchedule.MIN_INTERVAL, schedule.getNextCheck());
+
+        // Rare releases: checked at least once a week.
+        schedule = CheckSchedule.afterCheck(new CheckSchedule(NOW, 365 * DAY, 0), NOW + 365 * DAY, true);
+        assertEquals(NOW + 365 * DAY + CheckSchedule.MAX_INTERVAL, schedule.getNextCheck());
+    }
+
+    @Test
+    public void overdueReleaseLengthensThePoll()
+    {
+        // Releases every 8 days, but none for 40 days: the next gap is at least 40 days long.
+        CheckSchedule schedule = CheckSchedule.afterCheck(new CheckSchedule(NOW, 8 * DAY, 0), NOW + 40 * DAY, false);
+        assertEquals(NOW, schedule.getLastChange());
+        assertEquals(8 * DAY, schedule.getReleaseInterval());
+        assertEquals(NOW + 40 * DAY + 7 * DAY, schedule.getNextCheck());
+    }
+
+    @Test
+    public void unchangedVersionKeepsTheEstimation()
+    {
+        CheckSchedule schedule = CheckSchedule.afterCheck(new CheckSchedule(NOW, 8 * DAY, 0), NOW + DAY, false);
+        assertEquals(NOW, schedule.getLastChange());
+        assertEquals(8 * DAY, schedule.getReleaseInterval());
+        assertEquals(NOW + 3 * DAY, schedule.getNextCheck());
+    }
+
+    @Test
+    public void isDueToleratesHalfACycle()
+    {
+        CheckSchedule schedule = new CheckSchedule(0, 0, NOW);
+        assertTrue(schedule.isDue(NOW));
+        assertTrue(schedule.isDue(NOW - CheckSchedule.MIN_INTERVAL / 2));
+        assertFalse(schedule.isDue(NOW - CheckSchedule.MIN_INTERVAL / 2 - 1));
+    }
+}
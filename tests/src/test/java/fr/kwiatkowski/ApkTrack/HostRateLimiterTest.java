@@ -0,0 +1,93 @@
+/*
+ * Copyright (c) 2014
+ *
+ * ApkTrack is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ApkTrack is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ApkTrack.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package fr.kwiatkowski.ApkTrack;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertTrue;
+
+public class HostRateLimiterTest
+{
+    private static final long INTERVAL = 200;
+    private static final int CAPACITY = 3;
+
+    /**
+     * @return The time it took to acquire a token for the host, in milliseconds.
+     */
+    private static long time_acquire(HostRateLimiter limiter, String host) throws InterruptedException
+    {
+        long start = System.nanoTime();
+        limiter.acquire(host);
+        return (System.nanoTime() - start) / 1000000;
+    }
+
+    @Test
+    public void burstDoesNotWait() throws InterruptedException
+    {
+        HostRateLimiter limiter = new HostRateLimiter(INTERVAL, CAPACITY);
+        long start = System.nanoTime();
+        for (int i = 0 ; i < CAPACITY ; ++i) {
+            limiter.acquire("play.google.com");
+        }
+        assertTrue((System.nanoTime() - start) / 1000000 < INTERVAL / 2);
+    }
+
+    @Test
+    public void waitsOnceTheBurstIsSpent() throws InterruptedException
+    {
+        HostRateLimiter limiter = new HostRateLimiter(INTERVAL, CAPACITY);
+        for (int i = 0 ; i < CAPACITY ; ++i) {
+            limiter.acquire("play.google.com");
+        }
+        long waited = time_acquire(limiter, "play.google.com");
+        assertTrue("Waited " + waited + "ms", waited >= INTERVAL * 3 / 4);
+    }
+
+    @Test
+    public void queuedRequestsAreSpacedOut() throws InterruptedException
+    {
+        HostRateLimiter limiter = new HostRateLimiter(INTERVAL, 1);
+        long start = System.nanoTime();
+        for (int i = 0 ; i < 4 ; ++i) {
+            limiter.acquire("play.google.com");
+        }
+        // The first request is immediate, the three others wait for one interval each.
+        long elapsed = (System.nanoTime() - start) / 1000000;
+        assertTrue("Took " + elapsed + "ms", elapsed >= INTERVAL * 3 - INTERVAL / 4);
+    }
+
+    @Test
+    public void hostsAreIndependent() throws InterruptedException
+    {
+        HostRateLimiter limiter = new HostRateLimiter(INTERVAL, 1);
+        limiter.acquire("play.google.com");
+        long waited = time_acquire(limiter, "www.appbrain.com");
+        assertTrue("Waited " + waited + "ms", waited < INTERVAL / 2);
+    }
+
+    @Test
+    public void tokensAreRefilled() throws InterruptedException
+    {
+        HostRateLimiter limiter = new HostRateLimiter(INTERVAL, 1);
+        limiter.acquire("play.google.com");
+        Thread.sleep(INTERVAL + INTERVAL / 2);
+        long waited = time_acquire(limiter, "play.google.com");
+        assertTrue("Waited " + waited + "ms", waited < INTERVAL / 2);
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) 2014
+ *
+ * ApkTrack is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ApkTrack is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ApkTrack.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package fr.kwiatkowski.ApkTrack;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class VersionTest
+{
+    private static int compare(String a, String b) {
+        return Integer.signum(Version.parse(a).compareTo(Version.parse(b)));
+    }
+
+    @Test
+    public void comparesComponentsNumerically()
+    {
+        assertEquals(1, compare("1.10", "1.9"));
+        assertEquals(-1, compare("1.2.3", "1.2.10"));
+        assertEquals(1, compare("2", "1.99.99"));
+        assertEquals(1, compare("v1.1", "1.0"));
+    }
+
+    @Test
+    public void ignoresTrailingZeros()
+    {
+        assertEquals(0, compare("1.0", "1.0.0"));
+        assertEquals(Version.parse("1.0"), Version.parse("1.0.0"));
+        assertEquals(Version.parse("1.0").hashCode(), Version.parse("1.0.0").hashCode());
+    }
+
+    @Test
+    public void ordersQualifiers()
+    {
+        assertEquals(-1, compare("2.0-alpha", "2.0-beta"));
+        assertEquals(-1, compare("2.0-SNAPSHOT", "2.0-beta"));
+        assertEquals(-1, compare("2.0-beta", "2.0-rc1"));
+        assertEquals(-1, compare("2.0-rc1", "2.0"));
+        assertEquals(-1, compare("2.0-pre", "2.0"));
+        assertEquals(1, compare("2.0.1-beta", "2.0"));
+    }
+
+    @Test
+    public void comparesQualifierNumbers()
+    {
+        assertEquals(1, compare("2.0-beta10", "2.0-beta9"));
+        assertEquals(1, compare("2.0rc.3", "2.0-rc2"));
+        assertEquals(0, compare("2.0 (beta 2)", "2.0-beta2"));
+    }
+
+    @Test
+    public void qualifierMustBeAWholeWord()
+    {
+        // "march" contains "rc", "developer" contains "dev", "prebuilt" contains "pre": these are releases.
+        assertEquals(1, compare("2.0 (march update)", "2.0-rc9"));
+        assertEquals(1, compare("2.0-developer", "2.0-alpha"));
+        assertEquals(1, compare("2.0-prebuilt", "2.0-rc9"));
+        // Only the first word after the numbers is the qualifier.
+        assertEquals(1, compare("2.0 final (not a beta)", "2.0-rc9"));
+    }
+
+    @Test
+    public void unknownSuffixesAreNotIgnored()
+    {
+        assertEquals(1, compare("1.0b", "1.0a"));
+        assertEquals(1, compare("2.3.4b", "2.3.4a"));
+        assertEquals(1, compare("1.0a", "1.0"));
+        assertEquals(1, compare("1.0-hotfix", "1.0"));
+        assertTrue(Version.parse("1.0b").isNewerThan(Version.parse("1.0a")));
+        assertTrue(Version.parse("1.0a").isNewerThan(Version.parse("1.0")));
+        assertFalse(Version.parse("1.0a").equals(Version.parse("1.0b")));
+        assertEquals(Version.parse("1.0-a").hashCode(), Version.parse("1.0a").hashCode());
+    }
+
+    @Test
+    public void comparesBuildNumbers() {
+        assertEquals(1, compare("1.0 (1235)", "1.0 (1234)"));
+    }
+
+    @Test
+    public void keepsInvalidVersionsAsStrings()
+    {
+        Version v = Version.parse("Varies with device");
+        assertFalse(v.isValid());
+        assertEquals("Varies with device", v.toString());
+        assertEquals(-1, compare("Varies with device", "1.0"));
+        assertTrue(Version.parse("Varies with device").isNewerThan(Version.parse("1.0")));
+        assertFalse(Version.parse("Varies with device").isNewerThan(Version.parse(" Varies with device ")));
+        assertNull(Version.parse(null));
+    }
+
+    @Test
+    public void isNewerThan()
+    {
+        assertTrue(Version.parse("1.10").isNewerThan(Version.parse("1.9")));
+        assertFalse(Version.parse("1.0").isNewerThan(Version.parse("1.0.0")));
+        assertFalse(Version.parse("2.0-beta").isNewerThan(Version.parse("2.0")));
+        assertTrue(Version.parse("1.0").isNewerThan(null));
+    }
+
+    @Test
+    public void clampsHugeComponents() {
+        assertEquals(1, compare("99999999999999999999", "2147483646"));
+    }
+}